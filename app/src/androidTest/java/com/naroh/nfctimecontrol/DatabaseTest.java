@@ -18,6 +18,7 @@ package com.naroh.nfctimecontrol;
 
 import android.support.multidex.MultiDex;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Pair;
 import static android.support.test.InstrumentationRegistry.getTargetContext;
 
 import org.joda.time.DateTime;
@@ -30,13 +31,16 @@ import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 
 import java.util.List;
 
+import com.naroh.nfctimecontrol.data.Granularity;
 import com.naroh.nfctimecontrol.data.PlacesDAO;
+import com.naroh.nfctimecontrol.models.CheckSeries;
 
 @RunWith(AndroidJUnit4.class)
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -51,7 +55,7 @@ public class DatabaseTest {
     @Before
     public void setUp() throws Exception{
         MultiDex.install(getTargetContext());
-        db = new PlacesDAO(getTargetContext());
+        db = NFCTimeControl.getPlacesDAO(getTargetContext());
     }
 
     @After
@@ -110,4 +114,64 @@ public class DatabaseTest {
         db.check(DateTime.now(), "testnew");
         assertThat(db.getOpenChecks().size(), is(2));
     }
+
+    @Test
+    public void testA_rollupSplitsAtMidnight(){
+        DateTime checkIn = new DateTime(2016, 3, 2, 23, 0);
+        db.check(checkIn, "testrollup");
+        db.check(checkIn.plusHours(2), "testrollup");
+
+        List<Pair<DateTime, Long>> days = db.getMinutesByBucket("testrollup", Granularity.DAY, checkIn, checkIn.plusDays(2));
+        assertThat(days.size(), is(2));
+        assertThat(days.get(0).second, is(60L));
+        assertThat(days.get(1).second, is(60L));
+
+        List<Pair<DateTime, Long>> months = db.getMinutesByBucket("testrollup", Granularity.MONTH, checkIn, checkIn.plusDays(2));
+        assertThat(months.size(), is(1));
+        assertThat(months.get(0).second, is(120L));
+    }
+
+    @Test
+    public void testB_placesAtAndOverlapping(){
+        DateTime checkIn = new DateTime(2016, 3, 3, 13, 0);
+        db.check(checkIn, "testinterval");
+        db.check(checkIn.plusHours(2), "testinterval");
+
+        assertTrue(db.getPlacesAt(new DateTime(2016, 3, 3, 13, 0)).contains("testinterval"));
+        assertTrue(db.getPlacesAt(new DateTime(2016, 3, 3, 14, 0)).contains("testinterval"));
+        // Checked out at 15:00, so not there any more at 15:00
+        assertFalse(db.getPlacesAt(new DateTime(2016, 3, 3, 15, 0)).contains("testinterval"));
+        assertFalse(db.getPlacesAt(new DateTime(2016, 3, 3, 16, 0)).contains("testinterval"));
+
+        CheckSeries overlapping = db.getChecksOverlapping(new DateTime(2016, 3, 3, 14, 30), new DateTime(2016, 3, 3, 20, 0));
+        assertThat(overlapping.size(), is(1));
+        assertThat(overlapping.getPlaceName(0), is("testinterval"));
+        assertThat(db.getChecksOverlapping(new DateTime(2016, 3, 3, 15, 0), new DateTime(2016, 3, 3, 20, 0)).size(), is(0));
+    }
+
+    @Test
+    public void testC_rangeCountsAndSums(){
+        DateTime day = new DateTime(2016, 3, 3, 0, 0);
+        assertThat(db.getChecksBetween("testinterval", day, day.plusDays(1)).size(), is(1));
+        CheckSeries all = db.getChecksBetween(day, day.plusDays(1));
+        assertThat(all.size(), is(1));
+        assertThat(all.getPlaceName(0), is("testinterval"));
+        assertThat(db.getCheckCountBetween("testinterval", day, day.plusDays(1)), is(1));
+        assertThat(db.getCheckCountBetween("testinterval", day.plusDays(1), day.plusDays(2)), is(0));
+        assertThat(db.getMinutesBetween(null, day, day.plusDays(1)), is(120L));
+    }
+
+    @Test
+    public void testD_tagsByUid(){
+        byte[] uid = {0x04, 0x1a, (byte) 0xb2, 0x7f};
+        assertNull(db.getPlaceForTag(uid, 1));
+        db.learnTag(uid, "testinterval", 1);
+        assertThat(db.getPlaceForTag(uid, 1), is("testinterval"));
+        // Rewritten somewhere else
+        assertNull(db.getPlaceForTag(uid, 2));
+        db.learnTag(uid, "testrollup", 2);
+        assertThat(db.getPlaceForTag(uid, 2), is("testrollup"));
+        db.forgetTag(uid);
+        assertNull(db.getPlaceForTag(uid, 2));
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertTrue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import com.naroh.nfctimecontrol.data.PlacesSql;
+
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+    private static final String DATABASE_NAME = "places_migration";
+
+    private static final DateTime MONDAY = new DateTime(2016, 1, 4, 9, 0);
+
+    @Before
+    public void setUp() {
+        getTargetContext().deleteDatabase(DATABASE_NAME);
+
+        // Version 20: checking out stamped the last check out time on every row of the place
+        SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(getTargetContext().getDatabasePath(DATABASE_NAME), null);
+        legacy.execSQL("CREATE TABLE places (id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, placename varchar(255) NOT NULL, indate varchar(255) NOT NULL, outdate varchar(255))");
+        String lastOut = MONDAY.plusDays(2).plusHours(8).toString();
+        insertLegacy(legacy, "office", MONDAY, lastOut);
+        insertLegacy(legacy, "office", MONDAY.plusDays(1), lastOut);
+        insertLegacy(legacy, "office", MONDAY.plusDays(2), lastOut);
+        insertLegacy(legacy, "office", MONDAY.plusDays(3), null);
+        legacy.setVersion(20);
+        legacy.close();
+    }
+
+    @After
+    public void tearDown() {
+        getTargetContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    private static void insertLegacy(SQLiteDatabase db, String place, DateTime in, String out) {
+        db.execSQL("INSERT INTO places (placename, indate, outdate) VALUES (?, ?, ?)",
+                new Object[]{place, in.toString(), out});
+    }
+
+    @Test
+    public void upgradeFromVersion20_clampsStampedCheckOuts() {
+        PlacesSql sql = new PlacesSql(getTargetContext(), DATABASE_NAME, null, PlacesSql.DATABASE_VERSION);
+        SQLiteDatabase db = sql.getReadableDatabase();
+
+        Cursor checks = db.rawQuery("SELECT in_ms, out_ms FROM checks ORDER BY in_ms", null);
+        assertThat(checks.getCount(), is(4));
+        checks.moveToNext();
+        assertThat(checks.getLong(1), is(MONDAY.plusDays(1).getMillis()));
+        checks.moveToNext();
+        assertThat(checks.getLong(1), is(MONDAY.plusDays(2).getMillis()));
+        checks.moveToNext();
+        assertThat(checks.getLong(1), is(MONDAY.plusDays(2).plusHours(8).getMillis()));
+        checks.moveToNext();
+        assertTrue(checks.isNull(1));
+        checks.close();
+
+        Cursor summary = db.rawQuery("SELECT visits, total_minutes FROM place_summary", null);
+        assertTrue(summary.moveToNext());
+        assertThat(summary.getLong(0), is(4L));
+        assertThat(summary.getLong(1), is(2 * 24 * 60L + 8 * 60L));
+        summary.close();
+
+        sql.close();
+    }
+}
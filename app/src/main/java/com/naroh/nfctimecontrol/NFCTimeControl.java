@@ -16,7 +16,119 @@
 
 package com.naroh.nfctimecontrol;
 
+import android.content.Context;
+import android.os.StrictMode;
 import android.support.multidex.MultiDexApplication;
 
+import com.naroh.nfctimecontrol.data.AsyncPlacesDAO;
+import com.naroh.nfctimecontrol.data.CheckWriter;
+import com.naroh.nfctimecontrol.data.DataChangeBus;
+import com.naroh.nfctimecontrol.data.PlacesDAO;
+import com.naroh.nfctimecontrol.data.PlacesSql;
+import com.naroh.nfctimecontrol.helpers.TapDeduplicator;
+import com.naroh.nfctimecontrol.other.Constants;
+import com.naroh.nfctimecontrol.services.MaintenanceJobService;
+
 public class NFCTimeControl extends MultiDexApplication{
+    private PlacesDAO placesDAO;
+    private CheckWriter checkWriter;
+    private AsyncPlacesDAO asyncPlacesDAO;
+    private DataChangeBus dataChangeBus;
+    private TapDeduplicator tapDeduplicator = new TapDeduplicator(Constants.TAP_HISTORY, Constants.TAP_WINDOW_MS);
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if ("dev".equals(BuildConfig.FLAVOR)) {
+            // Report any storage access left on the main thread
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+        }
+
+        dataChangeBus = new DataChangeBus();
+        asyncPlacesDAO = new AsyncPlacesDAO(this);
+
+        MaintenanceJobService.schedule(this);
+    }
+
+    /**
+     * Get the writer every check change must go through. It's started the first time it's
+     * needed and opens the database on its own thread, so starting the application never
+     * touches the database.
+     * @param context any context of the application
+     * @return the shared CheckWriter
+     */
+    public static CheckWriter getCheckWriter(Context context) {
+        return ((NFCTimeControl) context.getApplicationContext()).getCheckWriter();
+    }
+
+    public synchronized CheckWriter getCheckWriter() {
+        if (checkWriter == null) {
+            checkWriter = new CheckWriter(this);
+            checkWriter.start();
+        }
+        return checkWriter;
+    }
+
+    /**
+     * Get the filter of repeated tag discoveries. It belongs to the application so it
+     * survives the activity being recreated.
+     * @param context any context of the application
+     * @return the shared TapDeduplicator
+     */
+    public static TapDeduplicator getTapDeduplicator(Context context) {
+        return ((NFCTimeControl) context.getApplicationContext()).tapDeduplicator;
+    }
+
+    /**
+     * Get the bus the database changes are posted to once committed.
+     * @param context any context of the application
+     * @return the shared DataChangeBus
+     */
+    public static DataChangeBus getDataChangeBus(Context context) {
+        return ((NFCTimeControl) context.getApplicationContext()).dataChangeBus;
+    }
+
+    /**
+     * Get the asynchronous access to the database, the one screens must use.
+     * @param context any context of the application
+     * @return the shared AsyncPlacesDAO
+     */
+    public static AsyncPlacesDAO getAsyncPlacesDAO(Context context) {
+        return ((NFCTimeControl) context.getApplicationContext()).asyncPlacesDAO;
+    }
+
+    /**
+     * Get the database access object shared by the whole process. The database is opened
+     * only once, the first time it's needed.
+     * @param context any context of the application
+     * @return the shared PlacesDAO
+     */
+    public static PlacesDAO getPlacesDAO(Context context) {
+        return ((NFCTimeControl) context.getApplicationContext()).getPlacesDAO();
+    }
+
+    public synchronized PlacesDAO getPlacesDAO() {
+        if (placesDAO == null)
+            placesDAO = new PlacesDAO(new PlacesSql(this, PlacesSql.DATABASE_NAME, null, PlacesSql.DATABASE_VERSION), dataChangeBus);
+        return placesDAO;
+    }
+
+    @Override
+    public void onTerminate() {
+        synchronized (this) {
+            if (checkWriter != null) {
+                checkWriter.quit();
+                checkWriter = null;
+            }
+            if (placesDAO != null) {
+                placesDAO.close();
+                placesDAO = null;
+            }
+        }
+        super.onTerminate();
+    }
 }
@@ -20,9 +20,12 @@ import android.app.PendingIntent;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.Uri;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.design.widget.CoordinatorLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
@@ -30,6 +33,7 @@ import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -40,23 +44,38 @@ import com.mikepenz.materialdrawer.Drawer;
 import com.mikepenz.materialdrawer.DrawerBuilder;
 import com.mikepenz.materialdrawer.model.PrimaryDrawerItem;
 import com.mikepenz.materialdrawer.model.interfaces.IDrawerItem;
+import com.naroh.nfctimecontrol.NFCTimeControl;
 import com.naroh.nfctimecontrol.R;
-import com.naroh.nfctimecontrol.data.PlacesDAO;
+import com.naroh.nfctimecontrol.data.CheckExporter;
+import com.naroh.nfctimecontrol.data.CheckWriter;
+import com.naroh.nfctimecontrol.data.CheckImporter;
 import com.naroh.nfctimecontrol.dialogs.NewTagDialog;
 import com.naroh.nfctimecontrol.fragments.MainActivityFragment;
 import com.naroh.nfctimecontrol.fragments.PlacesFragment;
 import com.naroh.nfctimecontrol.fragments.StatsFragment;
 import com.naroh.nfctimecontrol.helpers.NfcHandler;
+import com.naroh.nfctimecontrol.helpers.NfcWorker;
 import com.naroh.nfctimecontrol.helpers.SPHelper;
+import com.naroh.nfctimecontrol.helpers.TapDeduplicator;
 
 import org.joda.time.DateTime;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 public class MainActivity extends AppCompatActivity implements NewTagDialog.WriteToNFC{
+    private static final int REQUEST_IMPORT_FILE = 1;
+    // Marks an NFC intent as handled, so resuming the activity doesn't handle it again
+    private static final String EXTRA_NFC_CONSUMED = "com.naroh.nfctimecontrol.NFC_CONSUMED";
+    private static final String STATE_NFC_CONSUMED = "nfc_consumed";
 
     private NfcAdapter nfcAdapter;
     private PendingIntent nfcPendingIntent;
     String placeNameToWrite = "";
-    private NfcHandler nfcHandler;
+    private NfcWorker nfcWorker;
     private boolean erase;
     private Drawer drawer;
     private CoordinatorLayout parentLayout;
@@ -67,10 +86,14 @@ public class MainActivity extends AppCompatActivity implements NewTagDialog.Writ
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // A recreated activity gets its original intent back, without the mark
+        if (savedInstanceState != null && savedInstanceState.getBoolean(STATE_NFC_CONSUMED))
+            getIntent().putExtra(EXTRA_NFC_CONSUMED, true);
+
         parentLayout = (CoordinatorLayout) findViewById(R.id.parent);
         nfcAdapter = NfcAdapter.getDefaultAdapter(this);
         nfcPendingIntent = PendingIntent.getActivity(this, 0, new Intent(this, this.getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
-        nfcHandler = new NfcHandler(this);
+        nfcWorker = new NfcWorker(this);
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
@@ -167,11 +190,116 @@ public class MainActivity extends AppCompatActivity implements NewTagDialog.Writ
             snackbar.getView().setBackgroundColor(ContextCompat.getColor(this, R.color.accent));
             ((TextView) snackbar.getView().findViewById(android.support.design.R.id.snackbar_text)).setTextColor(ContextCompat.getColor(this, R.color.md_white_1000));
             snackbar.show();
+        } else if (id == R.id.export_csv) {
+            exportChecks(CheckExporter.Format.CSV);
+        } else if (id == R.id.export_json) {
+            exportChecks(CheckExporter.Format.JSON_LINES);
+        } else if (id == R.id.import_checks) {
+            Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+            pick.setType("*/*");
+            pick.addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(Intent.createChooser(pick, getString(R.string.import_checks)), REQUEST_IMPORT_FILE);
         }
 
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Export every check to a file in the background and let the user send it wherever
+     * they want, like an email to payroll.
+     * @param format the format of the file
+     */
+    private void exportChecks(final CheckExporter.Format format) {
+        final File file = new File(getExternalFilesDir(null), "nfctimecontrol-" + DateTime.now().toString("yyyyMMdd-HHmmss") + "." + format.getExtension());
+
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(file);
+                    CheckExporter exporter = new CheckExporter(NFCTimeControl.getPlacesDAO(MainActivity.this));
+                    return exporter.export(out, format, null, null, null);
+                } catch (IOException | RuntimeException e) {
+                    // Database errors too, they get the same message as a file that can't be written
+                    e.printStackTrace();
+                    return -1;
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Integer exported) {
+                if (exported < 0) {
+                    Toast.makeText(MainActivity.this, R.string.export_error, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                Toast.makeText(MainActivity.this, getResources().getQuantityString(R.plurals.exported_checks, exported, exported), Toast.LENGTH_LONG).show();
+
+                Intent send = new Intent(Intent.ACTION_SEND);
+                send.setType(format.getMimeType());
+                send.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+                startActivity(Intent.createChooser(send, getString(R.string.export_send)));
+            }
+        }.execute();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_IMPORT_FILE && resultCode == RESULT_OK && data != null && data.getData() != null)
+            importChecks(data.getData());
+    }
+
+    /**
+     * Import the checks of a CSV or JSON Lines file in the background.
+     * @param uri the file picked by the user
+     */
+    private void importChecks(final Uri uri) {
+        new AsyncTask<Void, Void, CheckImporter.Result>() {
+            @Override
+            protected CheckImporter.Result doInBackground(Void... params) {
+                InputStream in = null;
+                try {
+                    in = getContentResolver().openInputStream(uri);
+                    CheckImporter importer = new CheckImporter(NFCTimeControl.getPlacesDAO(MainActivity.this));
+                    return importer.importFrom(in);
+                } catch (IOException | RuntimeException e) {
+                    // Database and parse errors too, so the user sees the import failed
+                    e.printStackTrace();
+                    return null;
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected void onPostExecute(CheckImporter.Result result) {
+                if (result == null) {
+                    Toast.makeText(MainActivity.this, R.string.import_error, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                for (String rejection : result.getRejections())
+                    Log.w(getClass().getSimpleName(), rejection);
+                Toast.makeText(MainActivity.this, getString(R.string.import_result, result.getImported(),
+                        result.getRejected(), result.getRowsPerSecond()), Toast.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
+
     public void enableForegroundMode(){
         IntentFilter tagDetected = new IntentFilter(NfcAdapter.ACTION_TAG_DISCOVERED);
         IntentFilter[] writeTagFilters = new IntentFilter[] {tagDetected};
@@ -197,6 +325,12 @@ public class MainActivity extends AppCompatActivity implements NewTagDialog.Writ
         disableForegroundMode();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_NFC_CONSUMED, getIntent().getBooleanExtra(EXTRA_NFC_CONSUMED, false));
+    }
+
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
@@ -208,32 +342,90 @@ public class MainActivity extends AppCompatActivity implements NewTagDialog.Writ
         if (intent.getAction().equals(NfcAdapter.ACTION_TAG_DISCOVERED)
                 || intent.getAction().equals(NfcAdapter.ACTION_NDEF_DISCOVERED)){
 
+            if (intent.getBooleanExtra(EXTRA_NFC_CONSUMED, false))
+                return;
+            intent.putExtra(EXTRA_NFC_CONSUMED, true);
+
             // Get the NFC tag from the intent
             Tag discoveredTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+            // Remembered for writes too, so the discovery right after writing isn't a check
+            TapDeduplicator deduplicator = NFCTimeControl.getTapDeduplicator(this);
+            boolean newTap = deduplicator.accept(discoveredTag.getId(), SystemClock.elapsedRealtime());
 
             // The user has just wrote a new place name, so write it to the NFC tag
             if(!placeNameToWrite.equals("")) {
-                nfcHandler.writeTag(discoveredTag, placeNameToWrite);
+                nfcWorker.write(discoveredTag, placeNameToWrite, new NfcWorker.Callback() {
+                    @Override
+                    public void onResult(int result) {
+                        showWriteResult(result);
+                    }
+                });
                 placeNameToWrite = "";
                 SPHelper.putBoolean(this, "first_time", false);
                 snackbar.dismiss();
             }else if (erase){
                 // The user asked to erase the tag via the menu button
-                nfcHandler.eraseTag(discoveredTag);
+                nfcWorker.erase(discoveredTag, new NfcWorker.Callback() {
+                    @Override
+                    public void onResult(int result) {
+                        if (result != NfcHandler.WRITE_OK)
+                            Toast.makeText(MainActivity.this, R.string.nfc_tag_error_writing, Toast.LENGTH_LONG).show();
+                    }
+                });
                 erase = false;
                 snackbar.dismiss();
+            }else if (!newTap) {
+                Log.d(getClass().getSimpleName(), "Repeated tap ignored, " + deduplicator.getSuppressed() + " so far");
             }else {
-                String name = nfcHandler.readTag(intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES));
-                if (name != null) {
-                    PlacesDAO db = new PlacesDAO(this);
-                    db.check(DateTime.now(), name);
+                // The time of the tap, not of the lookup
+                final DateTime date = DateTime.now();
+                nfcWorker.resolve(discoveredTag.getId(), intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES),
+                        new NfcWorker.PlaceCallback() {
+                    @Override
+                    public void onPlace(String name) {
+                        if (name != null)
+                            checkPlace(date, name);
+                        else
+                            Toast.makeText(MainActivity.this, R.string.error_reading_nfc_tag, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }
+    }
 
-                } else
-                    Toast.makeText(MainActivity.this, R.string.error_reading_nfc_tag, Toast.LENGTH_LONG).show();
+    private void checkPlace(DateTime date, String name) {
+        // The writer stores the check in the background, the result comes as soon as it's known
+        NFCTimeControl.getCheckWriter(this).check(date, name, new CheckWriter.OnCheckListener() {
+            @Override
+            public void onCheck(String place, boolean checkIn) {
+                if (!isFinishing())
+                    Snackbar.make(parentLayout, getString(checkIn ? R.string.checked_in : R.string.checked_out, place), Snackbar.LENGTH_SHORT).show();
             }
+        });
+    }
+
+    private void showWriteResult(int result) {
+        switch (result) {
+            case NfcHandler.WRITE_OK:
+                Toast.makeText(this, R.string.nfc_tag_successful_write, Toast.LENGTH_LONG).show();
+                break;
+            case NfcHandler.WRITE_NOT_WRITABLE:
+                Toast.makeText(this, R.string.nfc_tag_not_writable, Toast.LENGTH_LONG).show();
+                break;
+            case NfcHandler.WRITE_NO_SPACE:
+                Toast.makeText(this, R.string.nfc_tag_no_space, Toast.LENGTH_LONG).show();
+                break;
+            default:
+                Toast.makeText(this, R.string.nfc_tag_error_writing, Toast.LENGTH_LONG).show();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        nfcWorker.quit();
+    }
+
     @Override
     public void setNameToWrite(String nameToWrite) {
         placeNameToWrite = nameToWrite;
@@ -21,24 +21,34 @@ import android.support.v7.app.AppCompatActivity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.util.List;
+import java.util.concurrent.Future;
 
 import de.codecrafters.tableview.TableView;
 import de.codecrafters.tableview.toolkit.SimpleTableHeaderAdapter;
+import com.naroh.nfctimecontrol.NFCTimeControl;
 import com.naroh.nfctimecontrol.R;
 import com.naroh.nfctimecontrol.adapters.TableViewAdapter;
+import com.naroh.nfctimecontrol.data.AsyncPlacesDAO;
 import com.naroh.nfctimecontrol.data.PlacesDAO;
-import com.naroh.nfctimecontrol.models.Check;
+import com.naroh.nfctimecontrol.models.CheckSeries;
+
+public class PlaceActivity extends AppCompatActivity implements TableViewAdapter.OnEndReachedListener {
+    private static final int PAGE_SIZE = 50;
 
-public class PlaceActivity extends AppCompatActivity {
     private String place;
     private TextView placeName;
     private TextView timesHere;
-    private PlacesDAO db;
-    private List<Check> checks;
+    private AsyncPlacesDAO db;
+    private Future<Long> visitsQuery;
+    private Future<CheckSeries> pageQuery;
+    private CheckSeries checks;
     private TableView tableView;
+    private TableViewAdapter adapter;
     private int position;
+    private boolean loading;
+    private boolean allLoaded;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,19 +64,77 @@ public class PlaceActivity extends AppCompatActivity {
         timesHere = (TextView) findViewById(R.id.times_here);
         tableView = (TableView) findViewById(R.id.tableView);
 
-        db = new PlacesDAO(this);
+        db = NFCTimeControl.getAsyncPlacesDAO(this);
 
         setPlaceInfo();
     }
 
     private void setPlaceInfo() {
         placeName.setText(place);
-        timesHere.setText(getResources().getQuantityString(R.plurals.times_here, ((Long)db.getVisitsCount(place)).intValue(), db.getVisitsCount(place)));
-        checks = db.getChecksIn(place);
-
-        TableViewAdapter adapter = new TableViewAdapter(this, checks);
+        visitsQuery = db.submit(new AsyncPlacesDAO.Query<Long>() {
+            @Override
+            public Long run(PlacesDAO dao) {
+                return dao.getVisitsCount(place);
+            }
+        }, new AsyncPlacesDAO.Callback<Long>() {
+            @Override
+            public void onResult(Long visits) {
+                timesHere.setText(getResources().getQuantityString(R.plurals.times_here, visits.intValue(), visits));
+            }
+        });
+
+        checks = new CheckSeries(place, PAGE_SIZE);
+        adapter = new TableViewAdapter(this, checks);
+        adapter.setOnEndReachedListener(this);
         tableView.setDataAdapter(adapter);
+        adapter.recycleCellsOf(tableView);
         tableView.setHeaderAdapter(new SimpleTableHeaderAdapter(this, "Checkin", "Checkout", "Time"));
+
+        // Only the first page is loaded, the rest arrives while scrolling
+        loadNextPage();
+    }
+
+    @Override
+    public void onEndReached() {
+        if (loading || allLoaded)
+            return;
+        loadNextPage();
+    }
+
+    private void loadNextPage() {
+        loading = true;
+        int last = checks.size() - 1;
+        final long beforeInMs = last < 0 ? Long.MAX_VALUE : checks.getCheckIn(last);
+        final long beforeId = last < 0 ? Long.MAX_VALUE : checks.getId(last);
+
+        pageQuery = db.submit(new AsyncPlacesDAO.Query<CheckSeries>() {
+            @Override
+            public CheckSeries run(PlacesDAO dao) {
+                return dao.getChecksIn(place, beforeInMs, beforeId, PAGE_SIZE);
+            }
+        }, new AsyncPlacesDAO.Callback<CheckSeries>() {
+            @Override
+            public void onResult(CheckSeries page) {
+                allLoaded = page.size() < PAGE_SIZE;
+                adapter.addChecks(page);
+                loading = false;
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                // Tried again on the next scroll to the end
+                loading = false;
+                Toast.makeText(PlaceActivity.this, R.string.error_loading_checks, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        visitsQuery.cancel(false);
+        if (pageQuery != null)
+            pageQuery.cancel(false);
     }
 
     @Override
@@ -79,7 +147,7 @@ public class PlaceActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
 
         if(item.getItemId() == R.id.delete_place){
-            db.delete(place);
+            NFCTimeControl.getCheckWriter(this).delete(place);
             finish();
         }
 
@@ -19,7 +19,9 @@ package com.naroh.nfctimecontrol.adapters;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LongSparseArray;
 import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,21 +29,36 @@ import android.widget.TextView;
 
 import com.amulyakhare.textdrawable.TextDrawable;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.naroh.nfctimecontrol.R;
 import com.naroh.nfctimecontrol.activities.PlaceActivity;
-import com.naroh.nfctimecontrol.data.PlacesDAO;
+import com.naroh.nfctimecontrol.models.PlaceSummary;
 
 public class PlacesAdapter extends RecyclerView.Adapter<PlacesAdapter.ViewHolder> {
     private Activity context;
-    private List<String> items;
-    private PlacesDAO db;
+    private List<PlaceSummary> items;
+    // Bumped on every change of items, so a diff computed against an older list is not applied
+    private int generation;
+    // What each place looks like, built on its first bind and reused until it changes
+    private Map<String, Row> rows = new HashMap<>();
+    // Initials drawables by initial and color, most places share one
+    private LongSparseArray<Drawable> initials = new LongSparseArray<>();
+    private final int initialsSize;
+    private final int evenColor;
+    private final int oddColor;
 
-    public PlacesAdapter(Activity context, List<String> items) {
+    public PlacesAdapter(Activity context, List<PlaceSummary> items) {
         this.context = context;
         this.items = items;
-        this.db = new PlacesDAO(context);
+        this.initialsSize = dpToPx(48);
+        this.evenColor = ContextCompat.getColor(context, R.color.accent);
+        this.oddColor = ContextCompat.getColor(context, R.color.primary_dark);
     }
 
     @Override
@@ -52,36 +69,183 @@ public class PlacesAdapter extends RecyclerView.Adapter<PlacesAdapter.ViewHolder
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        holder.title.setText(items.get(position));
-        holder.subtitle.setText(String.format(context.getResources().getQuantityString(R.plurals.been_here_times, ((Long) db.getVisitsCount(items.get(position))).intValue()), db.getVisitsCount(items.get(position))));
+        Row row = getRow(items.get(position));
+        holder.title.setText(row.name);
+        holder.subtitle.setText(row.subtitle);
+        holder.initials.setCompoundDrawablesWithIntrinsicBounds(row.initials, null, null, null);
+    }
 
-        TextDrawable initials = new TextDrawable.Builder()
-                .setHeight(dpToPx(48))
-                .setWidth(dpToPx(48))
-                .setShape(TextDrawable.DRAWABLE_SHAPE_OVAL)
-                .setText(items.get(position).substring(0,1))
-                .setColor(getAppropiateColor(position))
-                .build();
+    private Row getRow(PlaceSummary item){
+        Row row = rows.get(item.getPlaceName());
+        if (row == null || row.summary != item) {
+            String name = item.getPlaceName();
+            long visits = item.getVisits();
+            row = new Row(item, String.format(context.getResources().getQuantityString(R.plurals.been_here_times, (int) visits), visits),
+                    getInitials(name.charAt(0), getAppropiateColor(name)));
+            rows.put(name, row);
+        }
+        return row;
+    }
 
-        holder.initials.setCompoundDrawablesWithIntrinsicBounds(initials, null, null, null);
+    private Drawable getInitials(char initial, int color){
+        long key = ((long) initial << 32) | (color & 0xffffffffL);
+        Drawable drawable = initials.get(key);
+        if (drawable == null) {
+            drawable = new TextDrawable.Builder()
+                    .setHeight(initialsSize)
+                    .setWidth(initialsSize)
+                    .setShape(TextDrawable.DRAWABLE_SHAPE_OVAL)
+                    .setText(String.valueOf(initial))
+                    .setColor(color)
+                    .build();
+            initials.put(key, drawable);
+        }
+        return drawable;
     }
 
     private int dpToPx(int dp){
         return (int) (dp * Resources.getSystem().getDisplayMetrics().density);
     }
 
-    private int getAppropiateColor(int position){
-        if(position%2 == 0)
-            return ContextCompat.getColor(context, R.color.accent);
+    /**
+     * The color depends on the place and not on its row, so rows don't have to be rebound
+     * when a place is inserted or removed above them.
+     */
+    private int getAppropiateColor(String name){
+        if((name.hashCode() & 1) == 0)
+            return evenColor;
         else
-            return ContextCompat.getColor(context, R.color.primary_dark);
+            return oddColor;
+    }
+
+    /**
+     * Forget the rows of places no longer in the list.
+     */
+    private void pruneRows(){
+        if (rows.size() <= items.size())
+            return;
+        Map<String, Row> current = new HashMap<>();
+        for (PlaceSummary item : items) {
+            Row row = rows.get(item.getPlaceName());
+            if (row != null)
+                current.put(item.getPlaceName(), row);
+        }
+        rows = current;
     }
 
-    public void replaceData(List<String> newItems){
+    public void replaceData(List<PlaceSummary> newItems){
         this.items = newItems;
+        generation++;
+        pruneRows();
         notifyDataSetChanged();
     }
 
+    /**
+     * @return a copy of the current places, to diff against from another thread
+     */
+    public List<PlaceSummary> getItems(){
+        return new ArrayList<>(items);
+    }
+
+    public int getGeneration(){
+        return generation;
+    }
+
+    /**
+     * Show a new list of places notifying only the rows that changed.
+     * @param diff computed with {@link #diff(List, List, int)} against {@link #getItems()}
+     * @return false if the list changed while the diff was being computed, then nothing is
+     * applied and the diff must be computed again against the current list
+     */
+    public boolean applyDiff(Diff diff){
+        if (diff.generation != generation)
+            return false;
+        if (diff.operations == null) {
+            replaceData(diff.newItems);
+            return true;
+        }
+
+        this.items = diff.newItems;
+        generation++;
+        pruneRows();
+        for (int[] operation : diff.operations) {
+            switch (operation[0]) {
+                case Diff.INSERT:
+                    notifyItemRangeInserted(operation[1], operation[2]);
+                    break;
+                case Diff.REMOVE:
+                    notifyItemRangeRemoved(operation[1], operation[2]);
+                    break;
+                default:
+                    notifyItemRangeChanged(operation[1], operation[2]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute the changes between two lists of places. Meant to run on a background thread.
+     * Both lists must come sorted the same way, as returned by PlacesDAO#getPlaceSummaries,
+     * so a place never moves: it's only inserted, removed or changed.
+     * @param oldItems the places shown, from {@link #getItems()}
+     * @param newItems the places to show
+     * @param generation the {@link #getGeneration()} of the adapter when oldItems was taken
+     * @return the diff to apply
+     */
+    public static Diff diff(List<PlaceSummary> oldItems, List<PlaceSummary> newItems, int generation){
+        Set<String> oldNames = new HashSet<>();
+        for (PlaceSummary item : oldItems)
+            oldNames.add(item.getPlaceName());
+        Set<String> newNames = new HashSet<>();
+        for (PlaceSummary item : newItems)
+            newNames.add(item.getPlaceName());
+
+        Diff diff = new Diff(newItems, generation);
+        int i = 0, j = 0, position = 0;
+        while (i < oldItems.size() || j < newItems.size()) {
+            if (i < oldItems.size() && !newNames.contains(oldItems.get(i).getPlaceName())) {
+                diff.add(Diff.REMOVE, position);
+                i++;
+            } else if (j < newItems.size() && !oldNames.contains(newItems.get(j).getPlaceName())) {
+                diff.add(Diff.INSERT, position++);
+                j++;
+            } else {
+                if (i == oldItems.size() || j == newItems.size()
+                        || !oldItems.get(i).getPlaceName().equals(newItems.get(j).getPlaceName())) {
+                    // Not sorted the same way, there's no cheap diff
+                    diff.operations = null;
+                    return diff;
+                }
+                PlaceSummary oldItem = oldItems.get(i++);
+                PlaceSummary newItem = newItems.get(j++);
+                if (!sameContents(oldItem, newItem))
+                    diff.add(Diff.CHANGE, position);
+                position++;
+            }
+        }
+        return diff;
+    }
+
+    private static boolean sameContents(PlaceSummary a, PlaceSummary b){
+        return a.getVisits() == b.getVisits() && a.getTotalMinutes() == b.getTotalMinutes()
+                && (a.getLastSeen() == null ? b.getLastSeen() == null : a.getLastSeen().equals(b.getLastSeen()));
+    }
+
+    /**
+     * Rebind only the row of the given place.
+     * @param summary the new totals of the place
+     */
+    public void updatePlace(PlaceSummary summary){
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getPlaceName().equals(summary.getPlaceName())) {
+                items.set(i, summary);
+                generation++;
+                notifyItemChanged(i);
+                return;
+            }
+        }
+    }
+
     @Override
     public int getItemCount() {
         return items.size();
@@ -108,7 +272,7 @@ public class PlacesAdapter extends RecyclerView.Adapter<PlacesAdapter.ViewHolder
         @Override
         public void onClick(View v) {
             Intent placeActivity = new Intent(context, PlaceActivity.class);
-            placeActivity.putExtra("place", items.get(getAdapterPosition()));
+            placeActivity.putExtra("place", items.get(getAdapterPosition()).getPlaceName());
             placeActivity.putExtra("position", getAdapterPosition());
             context.startActivity(placeActivity);
         }
@@ -119,4 +283,58 @@ public class PlacesAdapter extends RecyclerView.Adapter<PlacesAdapter.ViewHolder
         }
     }
 
+    /**
+     * Everything a row shows, ready to be bound without formatting or allocating.
+     */
+    private static class Row {
+        final PlaceSummary summary;
+        final String name;
+        final String subtitle;
+        final Drawable initials;
+
+        Row(PlaceSummary summary, String subtitle, Drawable initials) {
+            this.summary = summary;
+            this.name = summary.getPlaceName();
+            this.subtitle = subtitle;
+            this.initials = initials;
+        }
+    }
+
+    public static class Diff {
+        static final int INSERT = 0;
+        static final int REMOVE = 1;
+        static final int CHANGE = 2;
+
+        private final List<PlaceSummary> newItems;
+        private final int generation;
+        // {type, position, count} in the order they must be notified, null for a full reload
+        private List<int[]> operations = new ArrayList<>();
+
+        private Diff(List<PlaceSummary> newItems, int generation) {
+            this.newItems = newItems;
+            this.generation = generation;
+        }
+
+        public List<PlaceSummary> getNewItems() {
+            return newItems;
+        }
+
+        /**
+         * Add an operation on a single row, joining it to the previous one when they are
+         * contiguous, so a block of new places is a single notification.
+         */
+        private void add(int type, int position) {
+            if (!operations.isEmpty()) {
+                int[] last = operations.get(operations.size() - 1);
+                // Removed rows shift the next ones up, so contiguous removals share a position
+                int next = type == REMOVE ? last[1] : last[1] + last[2];
+                if (last[0] == type && position == next) {
+                    last[2]++;
+                    return;
+                }
+            }
+            operations.add(new int[]{type, position, 1});
+        }
+    }
+
 }
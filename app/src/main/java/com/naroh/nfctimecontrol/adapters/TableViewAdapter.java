@@ -3,23 +3,37 @@ package com.naroh.nfctimecontrol.adapters;
 import android.content.Context;
 import android.graphics.Typeface;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.TextView;
 
 import com.naroh.nfctimecontrol.models.Check;
+import com.naroh.nfctimecontrol.models.CheckSeries;
 
+import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
 import de.codecrafters.tableview.TableDataAdapter;
+import de.codecrafters.tableview.TableView;
 
-public class TableViewAdapter extends TableDataAdapter {
-    private List<Check> data;
+public class TableViewAdapter extends TableDataAdapter<Check> {
+    // Ask for the next page when the table gets this close to the last loaded row
+    private static final int LOAD_MORE_THRESHOLD = 10;
+    private static final int COLUMNS = 3;
+
+    private CheckSeries checks;
+    // The text of each row, formatted the first time the row is shown
+    private List<String[]> rows = new ArrayList<>();
+    // Cells taken out of the rows the list has scrapped, ready for a new row
+    private List<TextView> freeCells = new ArrayList<>();
+    private OnEndReachedListener onEndReachedListener;
     private Context context;
     private DateTimeFormatter dateFormatter;
     private DateTimeFormatter timeFormatter;
@@ -33,51 +47,150 @@ public class TableViewAdapter extends TableDataAdapter {
     private int typeface = Typeface.NORMAL;
     private int textColor = 0x99000000;
 
-    public TableViewAdapter(Context context, List<Check> data) {
-        super(context, data);
+    public TableViewAdapter(Context context, CheckSeries checks) {
+        // The rows are read from the series, getCount and getItem never look at this list
+        super(context, Collections.<Check>emptyList());
         this.context = context;
-        this.data = data;
+        this.checks = checks;
         this.dateFormatter = DateTimeFormat.shortDate().withLocale(Locale.getDefault());
         this.timeFormatter = DateTimeFormat.shortTime().withLocale(Locale.getDefault());
+        for (int i = 0; i < checks.size(); i++)
+            rows.add(null);
+    }
+
+    @Override
+    public int getCount() {
+        return checks.size();
+    }
+
+    /**
+     * The row data handed to the table listeners, built only when they ask for it.
+     */
+    @Override
+    public Check getItem(int position) {
+        DateTime checkOut = checks.isOpen(position) ? null : new DateTime(checks.getCheckOut(position));
+        Integer minutes = checks.isOpen(position) ? null : checks.getMinutes(position);
+        return new Check(checks.getId(position), checks.getPlaceName(), new DateTime(checks.getCheckIn(position)), checkOut, minutes);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return checks.getId(position);
+    }
+
+    public void setOnEndReachedListener(OnEndReachedListener onEndReachedListener) {
+        this.onEndReachedListener = onEndReachedListener;
+    }
+
+    /**
+     * Append the next page of checks to the table.
+     * @param page the checks to add, older than the ones already shown
+     */
+    public void addChecks(CheckSeries page) {
+        checks.addAll(page);
+        for (int i = 0; i < page.size(); i++)
+            rows.add(null);
+        notifyDataSetChanged();
     }
 
     @Override
     public View getCellView(int rowIndex, int columnIndex, ViewGroup parentView) {
-        final TextView textView = new TextView(getContext());
+        if (columnIndex == 0 && onEndReachedListener != null && rowIndex >= checks.size() - LOAD_MORE_THRESHOLD)
+            onEndReachedListener.onEndReached();
+
+        TextView textView = obtainCell();
+        if (rowIndex < checks.size() && columnIndex < COLUMNS)
+            textView.setText(getRow(rowIndex)[columnIndex]);
+        else
+            textView.setText(null);
+
+        return textView;
+    }
+
+    private String[] getRow(int rowIndex) {
+        String[] row = rows.get(rowIndex);
+        if (row == null) {
+            row = new String[COLUMNS];
+            long checkIn = checks.getCheckIn(rowIndex);
+            row[0] = dateFormatter.print(checkIn) + "\n" + timeFormatter.print(checkIn);
+            if (!checks.isOpen(rowIndex)) {
+                long checkOut = checks.getCheckOut(rowIndex);
+                row[1] = dateFormatter.print(checkOut) + "\n" + timeFormatter.print(checkOut);
+                row[2] = String.valueOf(checks.getMinutes(rowIndex)) + " min";
+            } else {
+                // Still open
+                row[1] = "-";
+                row[2] = "-";
+            }
+            rows.set(rowIndex, row);
+        }
+        return row;
+    }
+
+    /**
+     * The table builds a new row view on every bind and never hands the convertView on, so
+     * the cells are recycled here instead. A cell belongs to the row that took it until the
+     * list of the table moves that row to its scrap heap, only then it can go to a new row.
+     * Without calling this every row gets new cells.
+     * @param tableView the table this adapter is set on
+     */
+    public void recycleCellsOf(TableView tableView) {
+        AbsListView list = findList(tableView);
+        if (list == null)
+            return;
+        list.setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                // A row with transient state is put back by the list as it is
+                if (!(view instanceof ViewGroup) || view.hasTransientState())
+                    return;
+                ViewGroup row = (ViewGroup) view;
+                for (int i = 0; i < row.getChildCount(); i++) {
+                    View cell = row.getChildAt(i);
+                    if (cell instanceof TextView)
+                        freeCells.add((TextView) cell);
+                }
+                row.removeAllViews();
+            }
+        });
+    }
+
+    private static AbsListView findList(ViewGroup parent) {
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            View child = parent.getChildAt(i);
+            if (child instanceof AbsListView)
+                return (AbsListView) child;
+            if (child instanceof ViewGroup) {
+                AbsListView list = findList((ViewGroup) child);
+                if (list != null)
+                    return list;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a cell with no parent, taken from a scrapped row if there's any
+     */
+    private TextView obtainCell() {
+        if (!freeCells.isEmpty())
+            return freeCells.remove(freeCells.size() - 1);
+
+        TextView textView = new TextView(getContext());
         textView.setPadding(paddingLeft, paddingTop, paddingRight, paddingBottom);
         textView.setTypeface(textView.getTypeface(), typeface);
         textView.setTextSize(textSize);
         textView.setTextColor(textColor);
         textView.setMaxLines(2);
         textView.setEllipsize(TextUtils.TruncateAt.END);
-
-        try {
-            switch (columnIndex) {
-                case 0:
-                    textView.setText(dateFormatter.print(data.get(rowIndex).getCheckIn()) + "\n" + timeFormatter.print(data.get(rowIndex).getCheckIn()));
-                    break;
-                case 1:
-                    try {
-                        textView.setText(dateFormatter.print(data.get(rowIndex).getCheckOut()) + "\n" + timeFormatter.print(data.get(rowIndex).getCheckOut()));
-                    } catch (Exception e) {
-                        textView.setText("-");
-                    }
-                    break;
-                case 2:
-                    try {
-                        textView.setText(String.valueOf(data.get(rowIndex).getHours()) + " min");
-                    } catch (Exception e) {
-                        textView.setText("-");
-                    }
-                    break;
-            }
-
-        } catch (final IndexOutOfBoundsException e) {
-            Log.w(getClass().getSimpleName(), "No Sting given for row " + rowIndex + ", column " + columnIndex + ". "
-                    + "Caught exception: " + e.toString());
-            // Show no text
-        }
-
         return textView;
     }
+
+    public interface OnEndReachedListener {
+        /**
+         * Called while binding the last rows of the table. May be called several times
+         * before the next page arrives.
+         */
+        void onEndReached();
+    }
 }
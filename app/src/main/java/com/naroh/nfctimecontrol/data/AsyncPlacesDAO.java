@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.naroh.nfctimecontrol.NFCTimeControl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs PlacesDAO queries on a small pool of background threads and delivers the results
+ * on the main thread. Screens must use this instead of calling the DAO directly.
+ */
+public class AsyncPlacesDAO {
+    private static final String TAG = "AsyncPlacesDAO";
+    private static final int THREADS = 2;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+
+    public AsyncPlacesDAO(Context context) {
+        this.context = context.getApplicationContext();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                // Unbounded, a burst of reloads must wait instead of being rejected on the main thread
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + " #" + ++count);
+            }
+        });
+    }
+
+    /**
+     * Run a query in the background.
+     * @param query the work to do with the DAO
+     * @param callback receives the result on the main thread, may be null
+     * @return a future that can be cancelled, the callback is never called after that
+     */
+    public <T> Future<T> submit(final Query<T> query, Callback<T> callback) {
+        Task<T> task = new Task<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return query.run(NFCTimeControl.getPlacesDAO(context));
+            }
+        }, callback);
+        executor.execute(task);
+        return task;
+    }
+
+    public interface Query<T> {
+        /**
+         * Called on a background thread.
+         * @param dao the shared DAO
+         * @return the result passed to the callback
+         */
+        T run(PlacesDAO dao);
+    }
+
+    public abstract static class Callback<T> {
+        /**
+         * Called on the main thread.
+         * @param result the result of the query
+         */
+        public abstract void onResult(T result);
+
+        /**
+         * Called on the main thread instead of {@link #onResult(Object)} when the query
+         * threw. Override it to reset any state waiting for the result.
+         * @param error what the query threw
+         */
+        public void onError(Throwable error) {
+        }
+    }
+
+    private class Task<T> extends FutureTask<T> {
+        private final Callback<T> callback;
+        private volatile boolean cancelled;
+
+        Task(Callable<T> callable, Callback<T> callback) {
+            super(callable);
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // A finished task can't be cancelled, but its result may not be delivered yet
+            cancelled = true;
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (cancelled || callback == null)
+                return;
+            T result = null;
+            Throwable error = null;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Query failed", e.getCause());
+                error = e.getCause();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Query interrupted", e);
+                error = e;
+            }
+            final T finalResult = result;
+            final Throwable finalError = error;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled)
+                        return;
+                    if (finalError != null)
+                        callback.onError(finalError);
+                    else
+                        callback.onResult(finalResult);
+                }
+            });
+        }
+    }
+}
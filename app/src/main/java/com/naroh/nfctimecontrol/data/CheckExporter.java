@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.database.Cursor;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes checks straight from a database cursor to a stream, one row at a time, so
+ * exporting years of data uses the same memory as exporting a day. Must not be run on
+ * the main thread.
+ */
+public class CheckExporter {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    public enum Format {
+        CSV("csv", "text/csv"),
+        JSON_LINES("jsonl", "application/x-ndjson");
+
+        private final String extension;
+        private final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    private final PlacesDAO dao;
+    private final DateTimeFormatter dateFormatter = ISODateTimeFormat.dateTime();
+
+    public CheckExporter(PlacesDAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Export the checks matching the filters. The stream is flushed but not closed.
+     * @param out where to write the checks
+     * @param format the output format
+     * @param place only export this place, null for all of them
+     * @param from only export checks starting at or after this date, null for no limit
+     * @param to only export checks starting before this date, null for no limit
+     * @return the number of exported checks
+     * @throws IOException if the stream can't be written
+     */
+    public int export(OutputStream out, Format format, String place, DateTime from, DateTime to) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+        Cursor cursor = dao.getChecksCursor(place, from, to);
+        int count = 0;
+        try {
+            if (format == Format.CSV)
+                writer.write("place,check_in,check_out,minutes\n");
+
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                long checkIn = cursor.getLong(1);
+                boolean open = cursor.isNull(2);
+                long checkOut = open ? 0 : cursor.getLong(2);
+
+                if (format == Format.CSV)
+                    writeCsv(writer, name, checkIn, checkOut, open);
+                else
+                    writeJson(writer, name, checkIn, checkOut, open);
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        writer.flush();
+        return count;
+    }
+
+    private void writeCsv(Writer writer, String name, long checkIn, long checkOut, boolean open) throws IOException {
+        writeCsvField(writer, name);
+        writer.write(',');
+        dateFormatter.printTo(writer, checkIn);
+        writer.write(',');
+        if (!open) {
+            dateFormatter.printTo(writer, checkOut);
+            writer.write(',');
+            writer.write(String.valueOf((checkOut - checkIn) / MILLIS_PER_MINUTE));
+        } else
+            writer.write(',');
+        writer.write('\n');
+    }
+
+    private void writeCsvField(Writer writer, String value) throws IOException {
+        // Quote only the fields that need it, doubling the quotes inside
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private void writeJson(Writer writer, String name, long checkIn, long checkOut, boolean open) throws IOException {
+        writer.write("{\"place\":");
+        writer.write(JSONObject.quote(name));
+        writer.write(",\"check_in\":\"");
+        dateFormatter.printTo(writer, checkIn);
+        writer.write("\",\"check_out\":");
+        if (!open) {
+            writer.write('"');
+            dateFormatter.printTo(writer, checkOut);
+            writer.write("\",\"minutes\":");
+            writer.write(String.valueOf((checkOut - checkIn) / MILLIS_PER_MINUTE));
+        } else
+            writer.write("null,\"minutes\":null");
+        writer.write("}\n");
+    }
+}
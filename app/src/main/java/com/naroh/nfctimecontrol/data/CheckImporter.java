@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.os.SystemClock;
+
+import com.naroh.nfctimecontrol.models.Check;
+
+import org.joda.time.DateTime;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads historical checks from a file written by {@link CheckExporter} or by hand, in CSV
+ * (place,check_in,check_out) or JSON Lines. Rows are validated and inserted in large
+ * batches, each one a single transaction. Must not be run on the main thread.
+ */
+public class CheckImporter {
+    private static final int BATCH_SIZE = 1000;
+    // Keep the first rejected rows so the user can fix them, not all of them
+    private static final int MAX_REPORTED_REJECTIONS = 100;
+
+    private final PlacesDAO dao;
+
+    public CheckImporter(PlacesDAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Import every valid check in the stream. The format is detected from the content.
+     * The stream is not closed.
+     * @param in the file to import
+     * @return what was imported and what was rejected
+     * @throws IOException if the stream can't be read
+     */
+    public Result importFrom(InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<Check> batch = new ArrayList<>(BATCH_SIZE);
+
+        if (isJsonLines(reader))
+            readJsonLines(reader, batch, result);
+        else
+            readCsv(reader, batch, result);
+        flush(batch, result);
+
+        result.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        return result;
+    }
+
+    private boolean isJsonLines(BufferedReader reader) throws IOException {
+        reader.mark(1);
+        int first = reader.read();
+        reader.reset();
+        return first == '{';
+    }
+
+    private void readJsonLines(BufferedReader reader, List<Check> batch, Result result) throws IOException {
+        String line;
+        int row = 0;
+        while ((line = reader.readLine()) != null) {
+            row++;
+            if (line.trim().isEmpty())
+                continue;
+            try {
+                JSONObject json = new JSONObject(line);
+                add(row, json.optString("place", null), json.optString("check_in", null),
+                        json.isNull("check_out") ? null : json.optString("check_out", null), batch, result);
+            } catch (JSONException e) {
+                result.reject(row, "invalid JSON");
+            }
+        }
+    }
+
+    private void readCsv(BufferedReader reader, List<Check> batch, Result result) throws IOException {
+        List<String> fields;
+        int row = 0;
+        while ((fields = readCsvRecord(reader)) != null) {
+            row++;
+            // Skip the header and blank lines
+            if ((row == 1 && "place".equals(fields.get(0))) || (fields.size() == 1 && fields.get(0).isEmpty()))
+                continue;
+            if (fields.size() < 3) {
+                result.reject(row, "expected place,check_in,check_out");
+                continue;
+            }
+            add(row, fields.get(0), fields.get(1), fields.get(2).isEmpty() ? null : fields.get(2), batch, result);
+        }
+    }
+
+    /**
+     * Read one CSV record, following quotes across line breaks.
+     * @return the fields, or null at the end of the stream
+     */
+    private List<String> readCsvRecord(Reader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int c = reader.read();
+        if (c == -1)
+            return null;
+
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    c = reader.read();
+                    if (c != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                field.append((char) c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private void add(int row, String place, String checkIn, String checkOut, List<Check> batch, Result result) {
+        if (place == null || place.trim().isEmpty()) {
+            result.reject(row, "missing place");
+            return;
+        }
+        if (checkIn == null || checkOut == null) {
+            result.reject(row, "missing check in or check out");
+            return;
+        }
+
+        DateTime in;
+        DateTime out;
+        try {
+            in = DateTime.parse(checkIn);
+            out = DateTime.parse(checkOut);
+        } catch (IllegalArgumentException e) {
+            result.reject(row, "invalid date");
+            return;
+        }
+        if (!out.isAfter(in)) {
+            result.reject(row, "check out before check in");
+            return;
+        }
+
+        batch.add(new Check(0, place.trim(), in, out, null));
+        if (batch.size() == BATCH_SIZE)
+            flush(batch, result);
+    }
+
+    private void flush(List<Check> batch, Result result) {
+        if (batch.isEmpty())
+            return;
+        dao.importChecks(batch);
+        result.imported += batch.size();
+        batch.clear();
+    }
+
+    public static class Result {
+        private int imported;
+        private int rejected;
+        private long elapsedMillis;
+        private List<String> rejections = new ArrayList<>();
+
+        private void reject(int row, String reason) {
+            rejected++;
+            if (rejections.size() < MAX_REPORTED_REJECTIONS)
+                rejections.add("Row " + row + ": " + reason);
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public long getRowsPerSecond() {
+            return elapsedMillis == 0 ? imported : imported * 1000L / elapsedMillis;
+        }
+
+        /**
+         * @return the reason of the first rejected rows, with their row number
+         */
+        public List<String> getRejections() {
+            return rejections;
+        }
+    }
+}
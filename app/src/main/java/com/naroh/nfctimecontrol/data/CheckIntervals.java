@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static interval tree over every check, answering which checks contain an instant or
+ * overlap a range in O(log n + matches). Checks are half open: one checked out at T is
+ * no longer there at T. The checks are kept sorted by check in, and the
+ * tree is implicit in that array: the middle of each range is the root of its subtree,
+ * and maxEnd holds the latest check out within each subtree so whole branches ending
+ * before the query can be skipped.
+ */
+class CheckIntervals {
+    // Open checks last until now, and maybe for a while
+    static final long OPEN = Long.MAX_VALUE;
+
+    private final int size;
+    private final long[] ids;
+    private final long[] placeIds;
+    private final String[] places;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] maxEnd;
+
+    /**
+     * Build the tree from a cursor of id, place id, place name, in_ms, out_ms sorted by in_ms.
+     */
+    CheckIntervals(Cursor cursor) {
+        size = cursor.getCount();
+        ids = new long[size];
+        placeIds = new long[size];
+        places = new String[size];
+        starts = new long[size];
+        ends = new long[size];
+        maxEnd = new long[size];
+
+        // One String per place instead of one per check
+        Map<String, String> names = new HashMap<>();
+        for (int i = 0; cursor.moveToNext(); i++) {
+            String place = cursor.getString(2);
+            String shared = names.get(place);
+            if (shared == null) {
+                names.put(place, place);
+                shared = place;
+            }
+            ids[i] = cursor.getLong(0);
+            placeIds[i] = cursor.getLong(1);
+            places[i] = shared;
+            starts[i] = cursor.getLong(3);
+            ends[i] = cursor.isNull(4) ? OPEN : cursor.getLong(4);
+        }
+        computeMaxEnd(0, size - 1);
+    }
+
+    private long computeMaxEnd(int low, int high) {
+        if (low > high)
+            return Long.MIN_VALUE;
+        int mid = (low + high) >>> 1;
+        long max = Math.max(ends[mid], Math.max(computeMaxEnd(low, mid - 1), computeMaxEnd(mid + 1, high)));
+        maxEnd[mid] = max;
+        return max;
+    }
+
+    /**
+     * Find the checks overlapping a range, not counting those ending right at its start.
+     * @param from start of the range, inclusive
+     * @param to end of the range, exclusive
+     * @return the indexes of the matching checks, by check in
+     */
+    List<Integer> overlapping(long from, long to) {
+        List<Integer> result = new ArrayList<>();
+        // In order traversal, so the indexes come out sorted
+        collect(0, size - 1, from, to, result);
+        return result;
+    }
+
+    private void collect(int low, int high, long from, long to, List<Integer> result) {
+        if (low > high)
+            return;
+        int mid = (low + high) >>> 1;
+        // Nothing in this subtree is still going on at the start of the range
+        if (maxEnd[mid] <= from)
+            return;
+        collect(low, mid - 1, from, to, result);
+        // Everything right of mid starts later, so it can only match if mid starts in time
+        if (starts[mid] < to) {
+            if (ends[mid] > from)
+                result.add(mid);
+            collect(mid + 1, high, from, to, result);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getId(int index) {
+        return ids[index];
+    }
+
+    long getPlaceId(int index) {
+        return placeIds[index];
+    }
+
+    String getPlace(int index) {
+        return places[index];
+    }
+
+    long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * @return the check out time, or {@link #OPEN}
+     */
+    long getEnd(int index) {
+        return ends[index];
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.naroh.nfctimecontrol.NFCTimeControl;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The only thread that changes checks. Mutations are queued and committed in groups, one
+ * transaction per group, so a tap never waits for the flash storage. The result of a tap
+ * is predicted from the open places kept in memory and reported as soon as they are
+ * loaded. What was committed is posted by the DAO to the {@link DataChangeBus}.
+ */
+public class CheckWriter extends Thread {
+    private static final String TAG = "CheckWriter";
+    // How long the writer waits for more mutations before committing a group
+    private static final long GROUP_COMMIT_WINDOW_MS = 100;
+    private static final int MAX_GROUP_SIZE = 64;
+    // How long to wait before trying to load the open places again
+    private static final long LOAD_RETRY_MS = 1000;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+    // Guarded by itself along with loaded and waiting
+    private final Set<String> openPlaces = new HashSet<>();
+    private boolean loaded;
+    // Mutations made before the open places were loaded, in order
+    private final List<Operation> waiting = new ArrayList<>();
+    private PlacesDAO dao;
+
+    public CheckWriter(Context context) {
+        super(TAG);
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Queue a check in or out of a place. Never blocks.
+     * @param date when the tag was scanned
+     * @param place the place name
+     * @param callback told on the main thread whether the place will be checked in or out
+     */
+    public void check(DateTime date, String place, OnCheckListener callback) {
+        enqueue(new Operation(Operation.CHECK, date, place, callback));
+    }
+
+    /**
+     * Queue the deletion of a place and all of its checks.
+     * @param place the place name
+     */
+    public void delete(String place) {
+        enqueue(new Operation(Operation.DELETE, null, place, null));
+    }
+
+    private void enqueue(Operation operation) {
+        synchronized (openPlaces) {
+            if (loaded)
+                predict(operation);
+            else
+                // Predicted by the writer once the database is open
+                waiting.add(operation);
+        }
+    }
+
+    /**
+     * Apply a mutation to the open places and queue it. Must hold the openPlaces lock, so
+     * mutations are queued in the order they were predicted.
+     */
+    private void predict(final Operation operation) {
+        if (operation.type == Operation.CHECK) {
+            final boolean checkIn = !openPlaces.remove(operation.place);
+            if (checkIn)
+                openPlaces.add(operation.place);
+            if (operation.callback != null) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        operation.callback.onCheck(operation.place, checkIn);
+                    }
+                });
+            }
+        } else
+            openPlaces.remove(operation.place);
+        queue.add(operation);
+    }
+
+    public void quit() {
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        List<Operation> group = new ArrayList<>(MAX_GROUP_SIZE);
+        try {
+            while (!loadOpenPlaces())
+                Thread.sleep(LOAD_RETRY_MS);
+
+            while (!isInterrupted()) {
+                group.add(queue.take());
+                collectGroup(group);
+                commit(group);
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            // Quit, anything still queued is lost
+        }
+    }
+
+    /**
+     * Open the database and predict the mutations made meanwhile.
+     * @return false if the database could not be read
+     */
+    private boolean loadOpenPlaces() {
+        List<String> open;
+        try {
+            dao = NFCTimeControl.getPlacesDAO(context);
+            open = dao.getOpenChecks();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Can't load the open places", e);
+            return false;
+        }
+
+        synchronized (openPlaces) {
+            if (open != null)
+                openPlaces.addAll(open);
+            loaded = true;
+            for (Operation operation : waiting)
+                predict(operation);
+            waiting.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Wait a little for more mutations so a burst of taps is written in one transaction.
+     */
+    private void collectGroup(List<Operation> group) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + GROUP_COMMIT_WINDOW_MS;
+        while (group.size() < MAX_GROUP_SIZE) {
+            long wait = deadline - SystemClock.uptimeMillis();
+            if (wait <= 0)
+                return;
+            Operation next = queue.poll(wait, TimeUnit.MILLISECONDS);
+            if (next == null)
+                return;
+            group.add(next);
+            queue.drainTo(group, MAX_GROUP_SIZE - group.size());
+        }
+    }
+
+    private void commit(final List<Operation> group) {
+        try {
+            dao.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (Operation operation : group)
+                        apply(operation);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Don't let one bad mutation take the whole group down with it
+            Log.e(TAG, "Group commit failed, retrying one by one", e);
+            for (Operation operation : group) {
+                try {
+                    apply(operation);
+                } catch (RuntimeException e1) {
+                    Log.e(TAG, "Dropping " + operation.place, e1);
+                }
+            }
+        }
+    }
+
+    private void apply(Operation operation) {
+        if (operation.type == Operation.CHECK)
+            dao.check(operation.date, operation.place);
+        else
+            dao.delete(operation.place);
+    }
+
+    public interface OnCheckListener {
+        /**
+         * Called on the main thread once the result of a tap is known.
+         * @param place the place name
+         * @param checkIn true if the place will be checked in, false if checked out
+         */
+        void onCheck(String place, boolean checkIn);
+    }
+
+    private static class Operation {
+        static final int CHECK = 0;
+        static final int DELETE = 1;
+
+        final int type;
+        final DateTime date;
+        final String place;
+        final OnCheckListener callback;
+
+        Operation(int type, DateTime date, String place, OnCheckListener callback) {
+            this.type = type;
+            this.date = date;
+            this.place = place;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+/**
+ * One change committed to the database, as delivered by {@link DataChangeBus}.
+ */
+public class DataChange {
+    public enum Type {
+        PLACE_ADDED,
+        PLACE_REMOVED,
+        CHECK_OPENED,
+        CHECK_CLOSED,
+        // Closed historical checks were added, see PlacesDAO#importChecks
+        CHECKS_IMPORTED
+    }
+
+    private Type type;
+    private String placeName;
+
+    public DataChange(Type type, String placeName) {
+        this.type = type;
+        this.placeName = placeName;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getPlaceName() {
+        return placeName;
+    }
+
+    /**
+     * @return true if the set of places changed, not just the checks of one of them
+     */
+    public boolean changesPlaces() {
+        return type == Type.PLACE_ADDED || type == Type.PLACE_REMOVED;
+    }
+}
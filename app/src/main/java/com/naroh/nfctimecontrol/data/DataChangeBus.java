@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tells the screens what changed in the database, so they requery only that instead of
+ * reloading everything whenever they are shown. The DAO posts the changes of each
+ * transaction once it's committed; rolled back changes are never posted.
+ */
+public class DataChangeBus {
+    private final List<OnDataChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public void addOnDataChangedListener(OnDataChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnDataChangedListener(OnDataChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    void post(final List<DataChange> changes) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnDataChangedListener listener : listeners)
+                    listener.onDataChanged(changes);
+            }
+        });
+    }
+
+    public interface OnDataChangedListener {
+        /**
+         * Called on the main thread after a transaction is committed.
+         * @param changes what the transaction changed, in the order it was done
+         */
+        void onDataChanged(List<DataChange> changes);
+    }
+}
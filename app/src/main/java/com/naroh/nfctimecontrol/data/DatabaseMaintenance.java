@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+/**
+ * Housekeeping meant to run while the device is idle and charging: statistics for the
+ * query planner, returning the pages freed by deleted places to the file system, and a
+ * quick integrity check. Every step is timed.
+ */
+public class DatabaseMaintenance {
+    // PRAGMA auto_vacuum values
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final SQLiteDatabase db;
+
+    DatabaseMaintenance(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    Report run() {
+        Report report = new Report();
+        long sizeBefore = getFileSize();
+
+        long start = SystemClock.elapsedRealtime();
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            // Databases created before it was enabled need a full rebuild, only once
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            report.fullVacuum = true;
+        } else {
+            // Stepping the pragma to the end frees every page in the free list
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+            cursor.getCount();
+            cursor.close();
+        }
+        report.vacuumMillis = SystemClock.elapsedRealtime() - start;
+        report.reclaimedBytes = sizeBefore - getFileSize();
+
+        start = SystemClock.elapsedRealtime();
+        db.execSQL("ANALYZE");
+        report.analyzeMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        report.integrity = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check(1)", null);
+        report.checkMillis = SystemClock.elapsedRealtime() - start;
+
+        return report;
+    }
+
+    private long getFileSize() {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    public static class Report {
+        private boolean fullVacuum;
+        private long reclaimedBytes;
+        private long vacuumMillis;
+        private long analyzeMillis;
+        private long checkMillis;
+        private String integrity;
+
+        /**
+         * @return true if the database was rebuilt to enable incremental vacuum
+         */
+        public boolean isFullVacuum() {
+            return fullVacuum;
+        }
+
+        public long getReclaimedBytes() {
+            return reclaimedBytes;
+        }
+
+        public long getVacuumMillis() {
+            return vacuumMillis;
+        }
+
+        public long getAnalyzeMillis() {
+            return analyzeMillis;
+        }
+
+        public long getCheckMillis() {
+            return checkMillis;
+        }
+
+        public boolean isIntact() {
+            return "ok".equals(integrity);
+        }
+
+        /**
+         * @return "ok", or the first problem found
+         */
+        public String getIntegrity() {
+            return integrity;
+        }
+
+        @Override
+        public String toString() {
+            return "vacuum " + vacuumMillis + " ms" + (fullVacuum ? " (full)" : "")
+                    + ", reclaimed " + reclaimedBytes + " bytes"
+                    + ", analyze " + analyzeMillis + " ms"
+                    + ", quick_check " + checkMillis + " ms: " + integrity;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+
+/**
+ * Size of the time buckets the check durations are rolled up into. Buckets start at
+ * midnight in the device time zone, weeks on Monday.
+ */
+public enum Granularity {
+    DAY(0),
+    WEEK(1),
+    MONTH(2);
+
+    // Stored in the database, don't rely on the ordinal
+    private final int id;
+
+    Granularity(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the start of the bucket that contains the given date.
+     * @param date any date
+     * @return the start of its bucket
+     */
+    public DateTime bucketStart(DateTime date) {
+        switch (this) {
+            case DAY:
+                return date.withTimeAtStartOfDay();
+            case WEEK:
+                return date.withDayOfWeek(DateTimeConstants.MONDAY).withTimeAtStartOfDay();
+            default:
+                return date.withDayOfMonth(1).withTimeAtStartOfDay();
+        }
+    }
+
+    /**
+     * Get the start of the bucket that follows the given one.
+     * @param bucketStart the start of a bucket
+     * @return the start of the next bucket
+     */
+    public DateTime nextBucket(DateTime bucketStart) {
+        switch (this) {
+            case DAY:
+                return bucketStart.plusDays(1).withTimeAtStartOfDay();
+            case WEEK:
+                return bucketStart.plusWeeks(1).withTimeAtStartOfDay();
+            default:
+                return bucketStart.plusMonths(1).withTimeAtStartOfDay();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.util.LruCache;
+
+import com.naroh.nfctimecontrol.models.CheckSeries;
+
+/**
+ * Decoded check histories and visit counts of the most recently opened places. Each entry
+ * holds the newest checks of a place, as many as have been paged in so far. The cache is
+ * bounded by the total number of checks it holds.
+ */
+class HistoryCache {
+    private static final int MAX_CHECKS = 2000;
+
+    private final LruCache<String, History> histories = new LruCache<String, History>(MAX_CHECKS) {
+        @Override
+        protected int sizeOf(String key, History value) {
+            return value.size;
+        }
+    };
+    // Bumped on every invalidation, so a query that raced with a write is not cached
+    private long generation;
+    private int hits;
+    private int misses;
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get a page of the cached history.
+     * @return the checks older than the given one, or null if they're not all cached
+     */
+    synchronized CheckSeries getChecks(String place, long beforeId, int limit) {
+        History history = histories.get(place);
+        if (history != null) {
+            int start = history.indexAfter(beforeId);
+            if (start >= 0 && (history.complete || (limit >= 0 && start + limit <= history.checks.size()))) {
+                hits++;
+                int end = limit < 0 ? history.checks.size() : Math.min(history.checks.size(), start + limit);
+                return history.checks.slice(start, end);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Store a page read from the database, if it continues what's cached already.
+     * @param generation the generation read before querying the database
+     */
+    synchronized void putChecks(String place, long beforeId, int limit, CheckSeries page, long generation) {
+        if (generation != this.generation)
+            return;
+
+        History history = histories.remove(place);
+        if (history == null)
+            history = new History(place);
+        if (history.indexAfter(beforeId) == history.checks.size()) {
+            history.checks.addAll(page);
+            history.complete = limit < 0 || page.size() < limit;
+        }
+        history.size = history.checks.size() + 1;
+        histories.put(place, history);
+    }
+
+    /**
+     * @return the cached visit count, or -1 if it's not cached
+     */
+    synchronized long getVisits(String place) {
+        History history = histories.get(place);
+        if (history != null && history.visits >= 0) {
+            hits++;
+            return history.visits;
+        }
+        misses++;
+        return -1;
+    }
+
+    synchronized void putVisits(String place, long visits, long generation) {
+        if (generation != this.generation)
+            return;
+
+        History history = histories.remove(place);
+        if (history == null)
+            history = new History(place);
+        history.visits = visits;
+        history.size = history.checks.size() + 1;
+        histories.put(place, history);
+    }
+
+    synchronized void invalidate(String place) {
+        generation++;
+        histories.remove(place);
+    }
+
+    synchronized int getHits() {
+        return hits;
+    }
+
+    synchronized int getMisses() {
+        return misses;
+    }
+
+    private static class History {
+        final CheckSeries checks;
+        boolean complete;
+        long visits = -1;
+        // Weight in the cache, fixed when the entry is put
+        int size;
+
+        History(String place) {
+            this.checks = new CheckSeries(place, 0);
+        }
+
+        /**
+         * @return the index following the given check, 0 for the first page, or -1 if
+         * the check is not cached
+         */
+        int indexAfter(long beforeId) {
+            if (beforeId == Long.MAX_VALUE)
+                return 0;
+            int index = checks.indexOf(beforeId);
+            return index < 0 ? -1 : index + 1;
+        }
+    }
+}
@@ -21,214 +21,907 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Looper;
 import android.util.Pair;
 
+import com.naroh.nfctimecontrol.BuildConfig;
 import com.naroh.nfctimecontrol.models.Check;
+import com.naroh.nfctimecontrol.models.CheckSeries;
+import com.naroh.nfctimecontrol.models.PlaceSummary;
 
 import org.joda.time.DateTime;
-import org.joda.time.Minutes;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class PlacesDAO {
-    private String table;
-    private Context context;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final boolean CHECK_THREAD = "dev".equals(BuildConfig.FLAVOR);
+
+    private static final String COUNT_PLACES = "SELECT COUNT(*) FROM place";
+    private static final String COUNT_CHECKS = "SELECT COUNT(*) FROM checks";
+    private static final String SELECT_VISITS = "SELECT visits FROM place_summary WHERE place_id = (SELECT id FROM place WHERE name = ?)";
+    private static final String SELECT_PLACE_ID = "SELECT id FROM place WHERE name = ?";
+    private static final String SELECT_PLACE_NAME = "SELECT name FROM place WHERE id = ?";
+    private static final String SELECT_TAG_PLACE = "SELECT p.name FROM tag t JOIN place p ON p.id = t.place_id WHERE t.uid = ? AND t.payload_hash = ?";
+    private static final String INSERT_TAG = "INSERT OR REPLACE INTO tag (uid, payload_hash, place_id) SELECT ?, ?, id FROM place WHERE name = ?";
+    private static final String DELETE_TAG = "DELETE FROM tag WHERE uid = ?";
+    private static final String INSERT_PLACE = "INSERT OR IGNORE INTO place (name) VALUES (?)";
+    private static final String INSERT_CHECK_IN = "INSERT INTO checks (place_id, in_ms) VALUES (?, ?)";
+    private static final String UPDATE_CHECK_OUT = "UPDATE checks SET out_ms = ? WHERE id = ?";
+    private static final String INSERT_CLOSED_CHECK = "INSERT INTO checks (place_id, in_ms, out_ms) VALUES (?, ?, ?)";
+    private static final String INSERT_SUMMARY = "INSERT INTO place_summary (place_id) VALUES (?)";
+    private static final String UPDATE_SUMMARY_CHECK_IN = "UPDATE place_summary SET visits = visits + 1, last_seen_ms = ? WHERE place_id = ?";
+    private static final String UPDATE_SUMMARY_CHECK_OUT = "UPDATE place_summary SET total_minutes = total_minutes + ?, last_seen_ms = ? WHERE place_id = ?";
+    private static final String UPDATE_SUMMARY_IMPORT = "UPDATE place_summary SET visits = visits + 1, total_minutes = total_minutes + ?, "
+            + "last_seen_ms = MAX(COALESCE(last_seen_ms, 0), ?) WHERE place_id = ?";
+    private static final String INSERT_OPEN_CHECK = "INSERT INTO open_check (place_id, check_id, in_ms) VALUES (?, ?, ?)";
+    private static final String DELETE_OPEN_CHECK = "DELETE FROM open_check WHERE place_id = ?";
+    private static final String COUNT_OPEN_CHECK = "SELECT COUNT(*) FROM open_check WHERE place_id = (SELECT id FROM place WHERE name = ?)";
+    private static final String DELETE_PLACE = "DELETE FROM place WHERE name = ?";
+    private static final String DELETE_UNUSED_PLACE = "DELETE FROM place WHERE id = ? "
+            + "AND NOT EXISTS (SELECT 1 FROM checks WHERE place_id = ?) AND NOT EXISTS (SELECT 1 FROM tag WHERE place_id = ?)";
+    // Range scans on checks_place_in, or on checks_in for all places
+    private static final String COUNT_CHECKS_BETWEEN = "SELECT COUNT(*) FROM checks WHERE in_ms >= ? AND in_ms < ?";
+    private static final String COUNT_PLACE_CHECKS_BETWEEN = "SELECT COUNT(*) FROM checks WHERE place_id = ? AND in_ms >= ? AND in_ms < ?";
+    private static final String SUM_MINUTES_BETWEEN = "SELECT COALESCE(SUM((out_ms - in_ms) / 60000), 0) FROM checks "
+            + "WHERE in_ms >= ? AND in_ms < ? AND out_ms IS NOT NULL";
+    private static final String SUM_PLACE_MINUTES_BETWEEN = "SELECT COALESCE(SUM((out_ms - in_ms) / 60000), 0) FROM checks "
+            + "WHERE place_id = ? AND in_ms >= ? AND in_ms < ? AND out_ms IS NOT NULL";
+
     private PlacesSql sql;
     private SQLiteDatabase db;
+    private StatementCache statements;
+    private HistoryCache historyCache = new HistoryCache();
+    private DataChangeBus changeBus;
+    // The transaction of each thread, so writers on other threads never see it
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+    // Built on the first interval query and dropped by every commit that changes something
+    private CheckIntervals intervals;
+    private long intervalsGeneration;
+    private final Object intervalsLock = new Object();
+    // Place and contents of the tags looked up so far, by hex UID
+    private final Map<String, KnownTag> tagPlaces = new HashMap<>();
+
+
+    /**
+     * Only the application creates this, so every screen shares the same connection.
+     * Use {@link com.naroh.nfctimecontrol.NFCTimeControl#getPlacesDAO(Context)} instead.
+     * @param sql the process wide database helper
+     * @param changeBus where the committed changes are posted
+     */
+    public PlacesDAO(PlacesSql sql, DataChangeBus changeBus) {
+        this.sql = sql;
+        this.changeBus = changeBus;
+        this.db = this.sql.getWritableDatabase();
+        this.statements = new StatementCache(db);
+    }
 
+    /**
+     * Every query blocks on the storage, so in dev builds calling one from the main
+     * thread is a crash instead of a dropped frame. Use AsyncPlacesDAO from the UI.
+     */
+    private void assertWorkerThread() {
+        if (CHECK_THREAD && Looper.myLooper() == Looper.getMainLooper())
+            throw new IllegalStateException("PlacesDAO called from the main thread, use AsyncPlacesDAO");
+    }
 
-    public PlacesDAO(Context context) {
-        this.context = context;
-        this.table = "places";
-        this.sql = new PlacesSql(context, "places", null, 20);
-        this.db = this.sql.getWritableDatabase();
+    /**
+     * Begin a transaction, or a nested one, on the calling thread.
+     */
+    private void beginTransaction() {
+        db.beginTransaction();
+        Transaction current = transaction.get();
+        if (current == null) {
+            current = new Transaction();
+            transaction.set(current);
+        }
+        current.depth++;
+    }
+
+    /**
+     * Drop the cached history of a place that is being changed.
+     */
+    private void invalidate(String place) {
+        historyCache.invalidate(place);
+        transaction.get().invalidations.add(place);
+    }
+
+    private void changed(DataChange.Type type, String place) {
+        transaction.get().changes.add(new DataChange(type, place));
+    }
+
+    /**
+     * End a transaction started by the DAO. When the outermost one ends, its changes are
+     * posted if everything was committed, nested transactions included.
+     */
+    private void endTransaction(boolean successful) {
+        Transaction current = transaction.get();
+        if (!successful)
+            current.failed = true;
+        boolean outermost = --current.depth == 0;
+        if (outermost)
+            transaction.remove();
+
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = true;
+        } finally {
+            if (outermost) {
+                // Drop the changed places again: a reader may have cached the old data
+                // between the change and the commit
+                for (String place : current.invalidations)
+                    historyCache.invalidate(place);
+                if (committed && !current.failed && !current.changes.isEmpty()) {
+                    synchronized (intervalsLock) {
+                        intervals = null;
+                        intervalsGeneration++;
+                    }
+                    changeBus.post(current.changes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the periodic housekeeping of the database. Takes from milliseconds to seconds
+     * on large databases, and writes wait for it meanwhile.
+     * @return what was done and how long it took
+     */
+    public DatabaseMaintenance.Report runMaintenance() {
+        assertWorkerThread();
+        return new DatabaseMaintenance(db).run();
+    }
+
+    public int getHistoryCacheHits() {
+        return historyCache.getHits();
+    }
+
+    public int getHistoryCacheMisses() {
+        return historyCache.getMisses();
+    }
+
+    public void close() {
+        statements.close();
+        sql.close();
     }
 
     public List<String> getPlaceNames(){
-        Cursor cursor = db.rawQuery("SELECT DISTINCT placename FROM places", null);
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT name FROM place ORDER BY name", null);
         List<String> result = new ArrayList<>();
         while (cursor.moveToNext())
-            result.add(cursor.getString(cursor.getColumnIndex("placename")));
+            result.add(cursor.getString(0));
         cursor.close();
         return result;
     }
+
     public int getPlacesCount(){
-        String sql = "SELECT DISTINCT placename FROM places;";
-        SQLiteStatement statement = db.compileStatement(sql);
-        Cursor cursor = db.query(true, "places", new String[] {"placename"}, "", null, null, null, null, null);
-        int size = cursor.getCount();
-        cursor.close();
-        return size;
+        assertWorkerThread();
+        return (int) statements.get(COUNT_PLACES).simpleQueryForLong();
     }
 
     public int getCheckCount(){
-        String sql = "SELECT placename FROM places;";
-        SQLiteStatement statement = db.compileStatement(sql);
-        Cursor cursor = db.query(true, "places", new String[] {"placename"}, "", null, null, null, null, null);
-        int size = cursor.getCount();
-        cursor.close();
-        return size;
+        assertWorkerThread();
+        return (int) statements.get(COUNT_CHECKS).simpleQueryForLong();
     }
 
     public boolean isEmpty(){
-        Cursor cursor  = db.rawQuery("SELECT * FROM places", null);
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT 1 FROM checks LIMIT 1", null);
         int size = cursor.getCount();
         cursor.close();
         return size == 0;
     }
 
     public long getVisitsCount(String place){
-        String sql = "SELECT COUNT(*) FROM places WHERE placename = ?;";
-        SQLiteStatement statement = db.compileStatement(sql);
+        assertWorkerThread();
+        long visits = historyCache.getVisits(place);
+        if (visits >= 0)
+            return visits;
+
+        long generation = historyCache.getGeneration();
+        SQLiteStatement statement = statements.get(SELECT_VISITS);
         statement.bindString(1, place);
-        return statement.simpleQueryForLong();
+        try {
+            visits = statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            visits = 0;
+        }
+        historyCache.putVisits(place, visits, generation);
+        return visits;
+    }
+
+    /**
+     * Get every place with its precomputed totals, sorted by name.
+     * @return one summary per place
+     */
+    public List<PlaceSummary> getPlaceSummaries(){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT p.name, s.visits, s.total_minutes, s.last_seen_ms "
+                + "FROM place p JOIN place_summary s ON s.place_id = p.id ORDER BY p.name", null);
+        List<PlaceSummary> result = new ArrayList<>();
+        while (cursor.moveToNext())
+            result.add(new PlaceSummary(cursor.getString(0), cursor.getLong(1), cursor.getLong(2),
+                    cursor.isNull(3) ? null : new DateTime(cursor.getLong(3))));
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * Get the precomputed totals of a single place.
+     * @param place the place name
+     * @return its summary, or null if the place doesn't exist
+     */
+    public PlaceSummary getPlaceSummary(String place){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT s.visits, s.total_minutes, s.last_seen_ms "
+                + "FROM place p JOIN place_summary s ON s.place_id = p.id WHERE p.name = ?", new String[]{place});
+        PlaceSummary result = null;
+        if (cursor.moveToFirst())
+            result = new PlaceSummary(place, cursor.getLong(0), cursor.getLong(1),
+                    cursor.isNull(2) ? null : new DateTime(cursor.getLong(2)));
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * Run several changes in a single transaction. Nested calls to check() or delete()
+     * join it, so only one commit reaches the storage.
+     * @param work the changes to make
+     */
+    public void runInTransaction(Runnable work) {
+        assertWorkerThread();
+        beginTransaction();
+        boolean successful = false;
+        try {
+            work.run();
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(successful);
+        }
     }
 
     public void check(DateTime date, String place) {
+        assertWorkerThread();
+        beginTransaction();
+        boolean successful = false;
+        try {
+            invalidate(place);
+            long placeId = getOrCreatePlaceId(place);
+
+            // If the place has an open check, close it. Otherwise open a new one
+            Cursor cursor = db.rawQuery("SELECT check_id, in_ms FROM open_check WHERE place_id = ?",
+                    new String[]{String.valueOf(placeId)});
+            if (cursor.moveToFirst()) {
+                long checkId = cursor.getLong(0);
+                long checkIn = cursor.getLong(1);
+                cursor.close();
+                registerCheckOut(date, placeId, checkId, checkIn);
+                changed(DataChange.Type.CHECK_CLOSED, place);
+            } else {
+                cursor.close();
+                registerCheckIn(date, placeId);
+                changed(DataChange.Type.CHECK_OPENED, place);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(successful);
+        }
+    }
 
-        String[] columnsToReturn = { "id", "placename", "indate", "outdate" };
-        String [] selectionCriteria = {place};
-        Cursor cursor = db.query("places", columnsToReturn, "placename=?", selectionCriteria, null, null, "id DESC");
+    /**
+     * Insert closed historical checks in a single transaction, keeping the summaries and
+     * rollups up to date. Meant for batches of hundreds or thousands of checks.
+     * @param checks closed checks, their id is ignored
+     */
+    public void importChecks(List<Check> checks) {
+        assertWorkerThread();
+        Map<String, Long> placeIds = new HashMap<>();
+        SQLiteStatement insert = statements.get(INSERT_CLOSED_CHECK);
+        SQLiteStatement summary = statements.get(UPDATE_SUMMARY_IMPORT);
+        SQLiteStatement rollupInsert = statements.get(Rollups.INSERT);
+        SQLiteStatement rollupUpdate = statements.get(Rollups.UPDATE);
+
+        beginTransaction();
+        boolean successful = false;
+        try {
+            for (Check check : checks) {
+                Long placeId = placeIds.get(check.getPlaceName());
+                if (placeId == null) {
+                    invalidate(check.getPlaceName());
+                    placeId = getOrCreatePlaceId(check.getPlaceName());
+                    placeIds.put(check.getPlaceName(), placeId);
+                    changed(DataChange.Type.CHECKS_IMPORTED, check.getPlaceName());
+                }
+                long checkIn = check.getCheckIn().getMillis();
+                long checkOut = check.getCheckOut().getMillis();
+
+                insert.bindLong(1, placeId);
+                insert.bindLong(2, checkIn);
+                insert.bindLong(3, checkOut);
+                insert.executeInsert();
+
+                summary.bindLong(1, (checkOut - checkIn) / MILLIS_PER_MINUTE);
+                summary.bindLong(2, checkOut);
+                summary.bindLong(3, placeId);
+                summary.executeUpdateDelete();
+
+                Rollups.add(rollupInsert, rollupUpdate, placeId, checkIn, checkOut);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(successful);
+        }
+    }
 
-        if (cursor.getCount() > 0) {
-            // Get if there is neccesary to open a checkin or just close it
-            boolean openCheck = false;
+    /**
+     * Add a place with no checks, if it doesn't exist yet. Tags are written with the id
+     * of their place, so the place is created when its tag is written.
+     * @param place the place name
+     * @return the id of the place
+     */
+    public long createPlace(String place) {
+        assertWorkerThread();
+        beginTransaction();
+        boolean successful = false;
+        try {
+            long placeId = getOrCreatePlaceId(place);
+            db.setTransactionSuccessful();
+            successful = true;
+            return placeId;
+        } finally {
+            endTransaction(successful);
+        }
+    }
 
-            // If there is a checkout date stored in the db, register the checkout
-            cursor.moveToFirst();
-            if(cursor.getString(cursor.getColumnIndex("outdate")) == null) {
-                // No checkout registry, open checkin
-                openCheck = true;
+    /**
+     * Remove a place made by {@link #createPlace(String)} if no tag was written with it,
+     * that is, if it has neither checks nor tags.
+     * @param placeId the id of the place
+     */
+    public void deleteUnusedPlace(long placeId) {
+        assertWorkerThread();
+        beginTransaction();
+        boolean successful = false;
+        try {
+            String place = getPlaceName(placeId);
+            SQLiteStatement statement = statements.get(DELETE_UNUSED_PLACE);
+            statement.bindLong(1, placeId);
+            statement.bindLong(2, placeId);
+            statement.bindLong(3, placeId);
+            if (place != null && statement.executeUpdateDelete() > 0) {
+                invalidate(place);
+                changed(DataChange.Type.PLACE_REMOVED, place);
             }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(successful);
+        }
+    }
 
-            if (!openCheck){
-                cursor.close();
-                registerCheckIn(date, place);
-            } else
-                registerCheckOut(date, place, cursor);
-        }else {
-            cursor.close();
-            registerCheckIn(date, place);
+    /**
+     * @param placeId the id of a place, as stored in its tags
+     * @return the place name, or null if there's no such place
+     */
+    public String getPlaceName(long placeId) {
+        assertWorkerThread();
+        SQLiteStatement statement = statements.get(SELECT_PLACE_NAME);
+        statement.bindLong(1, placeId);
+        try {
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
         }
     }
 
-    private void registerCheckIn(DateTime date, String place) {
-        String sql = "INSERT INTO places (placename, indate) VALUES (?, ?);";
-        SQLiteStatement statement = db.compileStatement(sql);
-        statement.bindString(1, place);
-        statement.bindString(2, date.toString());
-        statement.executeInsert();
-    }
-
-    private void registerCheckOut(DateTime date, String place, Cursor cursor) {
-        cursor.moveToFirst();
-        DateTime checkinDate = new DateTime(cursor.getString(cursor.getColumnIndex("indate")));
-        Minutes minutes = Minutes.minutesBetween(checkinDate, date);
-        String sql = ("UPDATE places SET outdate = ? WHERE placename = ?;");
-        SQLiteStatement statement = db.compileStatement(sql);
-        statement.bindString(1, date.toString());
-        statement.bindString(2, place);
+    /**
+     * Find the place of a tag already seen, without reading its contents.
+     * @param uid the tag id, from Tag#getId()
+     * @param payloadHash hash of the NDEF messages just read from the tag
+     * @return the place name, or null if the tag is unknown or its contents changed since
+     */
+    public String getPlaceForTag(byte[] uid, int payloadHash) {
+        assertWorkerThread();
+        String key = toHex(uid);
+        synchronized (tagPlaces) {
+            KnownTag known = tagPlaces.get(key);
+            if (known != null)
+                return known.payloadHash == payloadHash ? known.place : null;
+        }
+
+        SQLiteStatement statement = statements.get(SELECT_TAG_PLACE);
+        statement.bindBlob(1, uid);
+        statement.bindLong(2, payloadHash);
+        String place;
+        try {
+            place = statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+        synchronized (tagPlaces) {
+            tagPlaces.put(key, new KnownTag(place, payloadHash));
+        }
+        return place;
+    }
+
+    /**
+     * Remember the place of a tag, replacing what it was before.
+     * @param uid the tag id, from Tag#getId()
+     * @param place the place name, nothing is remembered if it doesn't exist
+     * @param payloadHash hash of the NDEF messages of the tag, to notice when it's rewritten
+     */
+    public void learnTag(byte[] uid, String place, int payloadHash) {
+        assertWorkerThread();
+        SQLiteStatement statement = statements.get(INSERT_TAG);
+        statement.bindBlob(1, uid);
+        statement.bindLong(2, payloadHash);
+        statement.bindString(3, place);
+        if (statement.executeInsert() != -1) {
+            synchronized (tagPlaces) {
+                tagPlaces.put(toHex(uid), new KnownTag(place, payloadHash));
+            }
+        }
+    }
+
+    /**
+     * Forget an erased tag.
+     * @param uid the tag id, from Tag#getId()
+     */
+    public void forgetTag(byte[] uid) {
+        assertWorkerThread();
+        synchronized (tagPlaces) {
+            tagPlaces.remove(toHex(uid));
+        }
+        SQLiteStatement statement = statements.get(DELETE_TAG);
+        statement.bindBlob(1, uid);
         statement.executeUpdateDelete();
-        cursor.close();
     }
 
-    public boolean isCheckOpen(String place) {
-        String[] columnsToReturn = { "id", "placename", "indate", "outdate" };
-        String [] selectionCriteria = {place};
-        Cursor cursor = db.query("places", columnsToReturn, "placename=?", selectionCriteria, null, null, "id DESC");
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
 
-        if (cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            String checkOutDate = cursor.getString(cursor.getColumnIndex("outdate"));
-            cursor.close();
-            return checkOutDate == null;
-        } else{
-            cursor.close();
-            return false;
+    private long getOrCreatePlaceId(String place) {
+        SQLiteStatement insert = statements.get(INSERT_PLACE);
+        insert.bindString(1, place);
+        long placeId = insert.executeInsert();
+        if (placeId != -1) {
+            // New place, start its totals
+            SQLiteStatement summary = statements.get(INSERT_SUMMARY);
+            summary.bindLong(1, placeId);
+            summary.executeInsert();
+            changed(DataChange.Type.PLACE_ADDED, place);
+            return placeId;
+        }
+
+        SQLiteStatement select = statements.get(SELECT_PLACE_ID);
+        select.bindString(1, place);
+        return select.simpleQueryForLong();
+    }
+
+    private long getPlaceId(String place) {
+        SQLiteStatement statement = statements.get(SELECT_PLACE_ID);
+        statement.bindString(1, place);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
         }
     }
 
+    private void registerCheckIn(DateTime date, long placeId) {
+        SQLiteStatement statement = statements.get(INSERT_CHECK_IN);
+        statement.bindLong(1, placeId);
+        statement.bindLong(2, date.getMillis());
+        long checkId = statement.executeInsert();
+
+        SQLiteStatement open = statements.get(INSERT_OPEN_CHECK);
+        open.bindLong(1, placeId);
+        open.bindLong(2, checkId);
+        open.bindLong(3, date.getMillis());
+        open.executeInsert();
+
+        SQLiteStatement summary = statements.get(UPDATE_SUMMARY_CHECK_IN);
+        summary.bindLong(1, date.getMillis());
+        summary.bindLong(2, placeId);
+        summary.executeUpdateDelete();
+    }
+
+    private void registerCheckOut(DateTime date, long placeId, long checkId, long checkIn) {
+        SQLiteStatement statement = statements.get(UPDATE_CHECK_OUT);
+        statement.bindLong(1, date.getMillis());
+        statement.bindLong(2, checkId);
+        statement.executeUpdateDelete();
+
+        SQLiteStatement close = statements.get(DELETE_OPEN_CHECK);
+        close.bindLong(1, placeId);
+        close.executeUpdateDelete();
+
+        SQLiteStatement summary = statements.get(UPDATE_SUMMARY_CHECK_OUT);
+        summary.bindLong(1, (date.getMillis() - checkIn) / MILLIS_PER_MINUTE);
+        summary.bindLong(2, date.getMillis());
+        summary.bindLong(3, placeId);
+        summary.executeUpdateDelete();
+
+        Rollups.add(statements.get(Rollups.INSERT), statements.get(Rollups.UPDATE), placeId, checkIn, date.getMillis());
+    }
+
+    public boolean isCheckOpen(String place) {
+        assertWorkerThread();
+        SQLiteStatement statement = statements.get(COUNT_OPEN_CHECK);
+        statement.bindString(1, place);
+        return statement.simpleQueryForLong() > 0;
+    }
+
     public List<String> getOpenChecks(){
-        String[] columnsToReturn = { "placename" };
-        Cursor cursor = db.query("places", columnsToReturn, "outdate is null or outdate = ?", new String[] {}, null, null, null);
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT p.name FROM open_check o JOIN place p ON p.id = o.place_id "
+                + "ORDER BY o.in_ms", null);
         if(cursor.getCount() < 1) {
             cursor.close();
             return null;
         }else{
             List<String> result = new ArrayList<>();
             while (cursor.moveToNext())
-                result.add(cursor.getString(cursor.getColumnIndex("placename")));
+                result.add(cursor.getString(0));
             cursor.close();
             return result;
         }
     }
 
+    /**
+     * @param place the place name
+     * @return when the open check of the place started, or -1 if it has none
+     */
+    public long getOpenCheckInMillis(String place){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT o.in_ms FROM open_check o JOIN place p ON p.id = o.place_id "
+                + "WHERE p.name = ?", new String[]{place});
+        long checkin = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        cursor.close();
+        return checkin;
+    }
+
     public long getTimeInOpenCheck(String place) throws SQLException{
-        String[] columnsToReturn = { "indate" };
-        String[] selectionCriteria = { place };
-        Cursor cursor = db.query("places", columnsToReturn, "placename=?", selectionCriteria, null, null, "id DESC");
-        if(cursor.getColumnCount() < 1){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT o.in_ms FROM open_check o JOIN place p ON p.id = o.place_id "
+                + "WHERE p.name = ?", new String[]{place});
+        if(!cursor.moveToFirst()){
             cursor.close();
             return 0;
         } else {
-            cursor.moveToFirst();
-            DateTime checkin = DateTime.parse(cursor.getString(cursor.getColumnIndex("indate")));
+            long checkin = cursor.getLong(0);
             cursor.close();
-            Minutes minutesBetween = Minutes.minutesBetween(checkin, DateTime.now());
-            return minutesBetween.getMinutes();
+            return (DateTime.now().getMillis() - checkin) / MILLIS_PER_MINUTE;
         }
     }
 
-    public List<Check> getChecksIn(String place){
-        List<Check> result = new ArrayList<>();
+    public CheckSeries getChecksIn(String place){
+        assertWorkerThread();
+        return getChecksIn(place, Long.MAX_VALUE, Long.MAX_VALUE, -1);
+    }
 
-        String[] columnsToReturn = { "indate", "outdate" };
-        String[] selectionCriteria = { place };
+    /**
+     * Get a page of the checks of a place, newest first. Pages are addressed by the last
+     * check of the previous one, so every page is an index seek no matter how deep it is.
+     * @param place the place name
+     * @param beforeInMs check in time of the last check already loaded, Long.MAX_VALUE for the first page
+     * @param beforeId id of the last check already loaded, Long.MAX_VALUE for the first page
+     * @param limit maximum number of checks to return, -1 for all of them
+     * @return the checks older than the given one
+     */
+    public CheckSeries getChecksIn(String place, long beforeInMs, long beforeId, int limit){
+        assertWorkerThread();
+        CheckSeries result = historyCache.getChecks(place, beforeId, limit);
+        if (result != null)
+            return result;
 
-        Cursor cursor = db.query("places", columnsToReturn, "placename = ?", selectionCriteria, null, null, "id DESC");
+        long generation = historyCache.getGeneration();
+        result = new CheckSeries(place, limit);
+
+        Cursor cursor = db.rawQuery("SELECT id, in_ms, out_ms FROM checks WHERE place_id = ? "
+                + "AND in_ms <= ? AND (in_ms < ? OR id < ?) ORDER BY in_ms DESC, id DESC LIMIT ?",
+                new String[]{
+                        String.valueOf(getPlaceId(place)),
+                        String.valueOf(beforeInMs),
+                        String.valueOf(beforeInMs),
+                        String.valueOf(beforeId),
+                        String.valueOf(limit)});
 
         while(cursor.moveToNext()) {
-            DateTime checkin = DateTime.parse(cursor.getString(cursor.getColumnIndex("indate")));
-            if(cursor.getString(cursor.getColumnIndex("outdate")) != null) {
-                DateTime checkout = DateTime.parse(cursor.getString(cursor.getColumnIndex("outdate")));
-                result.add(new Check(place, checkin, checkout, Minutes.minutesBetween(checkin, checkout).getMinutes()));
-            }else{
-                result.add(new Check(place, checkin, null, null));
-            }
+            if(!cursor.isNull(2))
+                result.add(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), (int) ((cursor.getLong(2) - cursor.getLong(1)) / MILLIS_PER_MINUTE));
+            else
+                result.addOpen(cursor.getLong(0), cursor.getLong(1));
         }
 
         cursor.close();
 
+        historyCache.putChecks(place, beforeId, limit, result, generation);
+        return result;
+    }
+
+    /**
+     * Get the minutes spent in a place per day, week or month. Only closed checks are
+     * counted. Buckets with no time are not returned.
+     * @param place the place name
+     * @param granularity size of the buckets
+     * @param from first date of the range, its whole bucket is included
+     * @param to end of the range, exclusive
+     * @return pairs of bucket start and minutes, in chronological order
+     */
+    public List<Pair<DateTime, Long>> getMinutesByBucket(String place, Granularity granularity, DateTime from, DateTime to){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT bucket_ms, duration_ms FROM rollup "
+                + "WHERE place_id = (SELECT id FROM place WHERE name = ?) AND granularity = ? "
+                + "AND bucket_ms >= ? AND bucket_ms < ? ORDER BY bucket_ms", new String[]{
+                place,
+                String.valueOf(granularity.getId()),
+                String.valueOf(granularity.bucketStart(from).getMillis()),
+                String.valueOf(to.getMillis())});
+
+        List<Pair<DateTime, Long>> result = new ArrayList<>();
+        while (cursor.moveToNext())
+            result.add(new Pair<>(new DateTime(cursor.getLong(0)), cursor.getLong(1) / MILLIS_PER_MINUTE));
+        cursor.close();
         return result;
     }
 
+    /**
+     * Open a cursor over the checks matching the filters, ordered by check in time. The
+     * rows are read in windows as the cursor moves, so nothing is loaded upfront.
+     * Columns: place name, in_ms, out_ms (null while open). The caller must close it.
+     * @param place only this place, null for all of them
+     * @param from only checks starting at or after this date, null for no limit
+     * @param to only checks starting before this date, null for no limit
+     * @return the cursor
+     */
+    public Cursor getChecksCursor(String place, DateTime from, DateTime to){
+        assertWorkerThread();
+        StringBuilder query = new StringBuilder("SELECT p.name, c.in_ms, c.out_ms FROM checks c JOIN place p ON p.id = c.place_id WHERE 1");
+        List<String> args = new ArrayList<>();
+        if (place != null) {
+            query.append(" AND p.name = ?");
+            args.add(place);
+        }
+        if (from != null) {
+            query.append(" AND c.in_ms >= ?");
+            args.add(String.valueOf(from.getMillis()));
+        }
+        if (to != null) {
+            query.append(" AND c.in_ms < ?");
+            args.add(String.valueOf(to.getMillis()));
+        }
+        query.append(" ORDER BY c.in_ms");
+        return db.rawQuery(query.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Get the checks of a place started within a range, for views showing a week or a
+     * month. Only the rows in the range are read.
+     * @param place the place name
+     * @param from first check in time included
+     * @param to end of the range, exclusive
+     * @return the checks, by check in time
+     */
+    public CheckSeries getChecksBetween(String place, DateTime from, DateTime to){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT id, in_ms, out_ms FROM checks WHERE place_id = ? "
+                + "AND in_ms >= ? AND in_ms < ? ORDER BY in_ms", new String[]{
+                String.valueOf(getPlaceId(place)),
+                String.valueOf(from.getMillis()),
+                String.valueOf(to.getMillis())});
+
+        CheckSeries result = new CheckSeries(place, cursor.getCount());
+        while (cursor.moveToNext()) {
+            if (!cursor.isNull(2))
+                result.add(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), (int) ((cursor.getLong(2) - cursor.getLong(1)) / MILLIS_PER_MINUTE));
+            else
+                result.addOpen(cursor.getLong(0), cursor.getLong(1));
+        }
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * Get the checks of every place started within a range, with the place of each one.
+     * @param from first check in time included
+     * @param to end of the range, exclusive
+     * @return the checks, by check in time
+     */
+    public CheckSeries getChecksBetween(DateTime from, DateTime to){
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT c.id, c.place_id, p.name, c.in_ms, c.out_ms FROM checks c JOIN place p ON p.id = c.place_id "
+                + "WHERE c.in_ms >= ? AND c.in_ms < ? ORDER BY c.in_ms", new String[]{
+                String.valueOf(from.getMillis()),
+                String.valueOf(to.getMillis())});
+
+        CheckSeries result = CheckSeries.ofPlaces(cursor.getCount());
+        while (cursor.moveToNext()) {
+            if (!cursor.isNull(4))
+                result.add(cursor.getLong(1), cursor.getString(2), cursor.getLong(0), cursor.getLong(3), cursor.getLong(4),
+                        (int) ((cursor.getLong(4) - cursor.getLong(3)) / MILLIS_PER_MINUTE));
+            else
+                result.addOpen(cursor.getLong(1), cursor.getString(2), cursor.getLong(0), cursor.getLong(3));
+        }
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * Count the checks started within a range.
+     * @param place the place name, null for all of them
+     * @param from first check in time included
+     * @param to end of the range, exclusive
+     * @return the number of checks
+     */
+    public int getCheckCountBetween(String place, DateTime from, DateTime to){
+        assertWorkerThread();
+        return (int) queryBetween(place, COUNT_PLACE_CHECKS_BETWEEN, COUNT_CHECKS_BETWEEN, from, to);
+    }
+
+    /**
+     * Add up the minutes of the closed checks started within a range.
+     * @param place the place name, null for all of them
+     * @param from first check in time included
+     * @param to end of the range, exclusive
+     * @return the minutes
+     */
+    public long getMinutesBetween(String place, DateTime from, DateTime to){
+        assertWorkerThread();
+        return queryBetween(place, SUM_PLACE_MINUTES_BETWEEN, SUM_MINUTES_BETWEEN, from, to);
+    }
+
+    private long queryBetween(String place, String placeQuery, String allQuery, DateTime from, DateTime to) {
+        SQLiteStatement statement;
+        int index = 1;
+        if (place != null) {
+            statement = statements.get(placeQuery);
+            statement.bindLong(index++, getPlaceId(place));
+        } else
+            statement = statements.get(allQuery);
+        statement.bindLong(index++, from.getMillis());
+        statement.bindLong(index, to.getMillis());
+        return statement.simpleQueryForLong();
+    }
+
+    /**
+     * Find where the user was at a given moment, or is now for open checks.
+     * @param date the moment to look at
+     * @return the places with a check covering it, by check in time
+     */
+    public List<String> getPlacesAt(DateTime date){
+        assertWorkerThread();
+        CheckIntervals intervals = getIntervals();
+        List<String> result = new ArrayList<>();
+        // [date, date + 1ms) overlaps the checks started by then and not yet checked out
+        for (int index : intervals.overlapping(date.getMillis(), date.getMillis() + 1)) {
+            if (!result.contains(intervals.getPlace(index)))
+                result.add(intervals.getPlace(index));
+        }
+        return result;
+    }
+
+    /**
+     * Find the checks of every place overlapping a range, such as a billing period. Open
+     * checks are considered to go on forever.
+     * @param from start of the range
+     * @param to end of the range, exclusive
+     * @return the checks, by check in time
+     */
+    public CheckSeries getChecksOverlapping(DateTime from, DateTime to){
+        assertWorkerThread();
+        CheckIntervals intervals = getIntervals();
+        List<Integer> overlapping = intervals.overlapping(from.getMillis(), to.getMillis());
+        CheckSeries result = CheckSeries.ofPlaces(overlapping.size());
+        for (int index : overlapping) {
+            long checkIn = intervals.getStart(index);
+            long checkOut = intervals.getEnd(index);
+            if (checkOut == CheckIntervals.OPEN)
+                result.addOpen(intervals.getPlaceId(index), intervals.getPlace(index), intervals.getId(index), checkIn);
+            else
+                result.add(intervals.getPlaceId(index), intervals.getPlace(index), intervals.getId(index), checkIn, checkOut,
+                        (int) ((checkOut - checkIn) / MILLIS_PER_MINUTE));
+        }
+        return result;
+    }
+
+    private CheckIntervals getIntervals() {
+        long generation;
+        synchronized (intervalsLock) {
+            if (intervals != null)
+                return intervals;
+            generation = intervalsGeneration;
+        }
+
+        Cursor cursor = db.rawQuery("SELECT c.id, c.place_id, p.name, c.in_ms, c.out_ms FROM checks c "
+                + "JOIN place p ON p.id = c.place_id ORDER BY c.in_ms, c.id", null);
+        CheckIntervals built;
+        try {
+            built = new CheckIntervals(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (intervalsLock) {
+            // Don't keep it if a commit landed while it was being built
+            if (generation == intervalsGeneration)
+                intervals = built;
+        }
+        return built;
+    }
+
     public void delete(String place){
-        String sql = "DELETE FROM places WHERE placename = ?";
-        SQLiteStatement statement = db.compileStatement(sql);
-        statement.bindString(1, place);
-        statement.execute();
+        assertWorkerThread();
+        beginTransaction();
+        boolean successful = false;
+        try {
+            invalidate(place);
+            synchronized (tagPlaces) {
+                Iterator<KnownTag> known = tagPlaces.values().iterator();
+                while (known.hasNext()) {
+                    if (known.next().place.equals(place))
+                        known.remove();
+                }
+            }
+            // Checks and tags are removed along with the place by the foreign key cascade
+            SQLiteStatement statement = statements.get(DELETE_PLACE);
+            statement.bindString(1, place);
+            if (statement.executeUpdateDelete() > 0)
+                changed(DataChange.Type.PLACE_REMOVED, place);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(successful);
+        }
     }
 
     public List<Pair<String, Integer>> getAllChecks(){
-        String[] columnsToReturn = { "placename" };
-        Cursor cursor = db.query("places", columnsToReturn, null, null, null, null, null);
+        assertWorkerThread();
+        Cursor cursor = db.rawQuery("SELECT p.name, s.visits FROM place p JOIN place_summary s ON s.place_id = p.id "
+                + "WHERE s.visits > 0", null);
 
-        List<String> places = new ArrayList<>();
+        List<Pair<String, Integer>> results = new ArrayList<>();
         while(cursor.moveToNext()){
-            places.add(cursor.getString(cursor.getColumnIndex("placename")));
+            results.add(new Pair<>(cursor.getString(0), cursor.getInt(1)));
         }
         cursor.close();
+        return results;
+    }
 
-        Set<String> resultsSet= new HashSet<String>(places);
-        List<Pair<String, Integer>> results = new ArrayList<>();
-        for (String place : resultsSet) {
-            results.add(new Pair(place, Collections.frequency(places, place)));
+    /**
+     * What a thread changed within its outermost transaction, kept until it ends.
+     */
+    private static class Transaction {
+        int depth;
+        boolean failed;
+        final List<DataChange> changes = new ArrayList<>();
+        final Set<String> invalidations = new HashSet<>();
+    }
+
+    private static class KnownTag {
+        final String place;
+        final int payloadHash;
+
+        KnownTag(String place, int payloadHash) {
+            this.place = place;
+            this.payloadHash = payloadHash;
         }
-        return results;
     }
 }
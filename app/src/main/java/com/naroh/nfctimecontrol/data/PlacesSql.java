@@ -18,23 +18,180 @@ package com.naroh.nfctimecontrol.data;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.joda.time.DateTime;
 
 public class PlacesSql extends SQLiteOpenHelper {
 
-    String creation = "CREATE TABLE places (id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, placename varchar(255) NOT NULL, indate varchar(255) NOT NULL, outdate varchar(255))";
+    public static final String DATABASE_NAME = "places";
+    public static final int DATABASE_VERSION = 26;
+
+    /**
+     * Version 20 layout: a single flat table repeating the place name on every row and
+     * storing the dates as ISO strings. Only used to migrate old installs.
+     */
+    private static final String LEGACY_TABLE = "places";
+
+    // Check in following a check of the version 20 table, of the same place
+    private static final String NEXT_CHECK_IN = "SELECT MIN(n.in_ms) FROM checks n "
+            + "WHERE n.place_id = checks.place_id AND n.in_ms > checks.in_ms";
+
+    private static final String CREATE_PLACE = "CREATE TABLE place ("
+            + "id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, "
+            + "name TEXT NOT NULL UNIQUE)";
+
+    // "check" is a reserved word in SQLite, so the table is named in plural
+    private static final String CREATE_CHECKS = "CREATE TABLE checks ("
+            + "id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, "
+            + "place_id INTEGER NOT NULL REFERENCES place(id) ON DELETE CASCADE, "
+            + "in_ms INTEGER NOT NULL, "
+            + "out_ms INTEGER)";
+
+    private static final String CREATE_CHECKS_PLACE_INDEX = "CREATE INDEX checks_place_in ON checks (place_id, in_ms)";
+
+    // Date range queries across all places
+    private static final String CREATE_CHECKS_IN_INDEX = "CREATE INDEX checks_in ON checks (in_ms)";
+
+    // At most one open check per place, so toggling never looks at the history
+    private static final String CREATE_OPEN_CHECK = "CREATE TABLE open_check ("
+            + "place_id INTEGER NOT NULL PRIMARY KEY REFERENCES place(id) ON DELETE CASCADE, "
+            + "check_id INTEGER NOT NULL REFERENCES checks(id) ON DELETE CASCADE, "
+            + "in_ms INTEGER NOT NULL)";
+
+    // Running totals per place, updated by the DAO in the same transaction as each check
+    private static final String CREATE_PLACE_SUMMARY = "CREATE TABLE place_summary ("
+            + "place_id INTEGER NOT NULL PRIMARY KEY REFERENCES place(id) ON DELETE CASCADE, "
+            + "visits INTEGER NOT NULL DEFAULT 0, "
+            + "total_minutes INTEGER NOT NULL DEFAULT 0, "
+            + "last_seen_ms INTEGER)";
+
+    // Time spent per place and day, week or month. Filled by Rollups when checks close
+    private static final String CREATE_ROLLUP = "CREATE TABLE rollup ("
+            + "place_id INTEGER NOT NULL REFERENCES place(id) ON DELETE CASCADE, "
+            + "granularity INTEGER NOT NULL, "
+            + "bucket_ms INTEGER NOT NULL, "
+            + "duration_ms INTEGER NOT NULL DEFAULT 0, "
+            + "PRIMARY KEY (place_id, granularity, bucket_ms))";
+
+    // Place of each tag seen, by the UID of the tag, so known tags skip reading their contents.
+    // The hash of the NDEF messages tells when the tag was rewritten somewhere else
+    private static final String CREATE_TAG = "CREATE TABLE tag ("
+            + "uid BLOB NOT NULL PRIMARY KEY, "
+            + "payload_hash INTEGER NOT NULL, "
+            + "place_id INTEGER NOT NULL REFERENCES place(id) ON DELETE CASCADE)";
 
     public PlacesSql(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
         super(context, name, factory, version);
+        // Readers work on a snapshot so they never wait for the tap writer
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.setForeignKeyConstraintsEnabled(true);
+        // Only takes effect on new databases, DatabaseMaintenance converts the old ones
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(creation);
+        // Fresh installs start from the first normalized layout and walk the same upgrade
+        // steps as existing ones, so every schema change is written only once
+        createVersion21(db);
+        onUpgrade(db, 21, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 21)
+            upgradeToVersion21(db);
+        if (oldVersion < 22)
+            upgradeToVersion22(db);
+        if (oldVersion < 23)
+            upgradeToVersion23(db);
+        if (oldVersion < 24)
+            upgradeToVersion24(db);
+        if (oldVersion < 25)
+            db.execSQL(CREATE_CHECKS_IN_INDEX);
+        if (oldVersion < 26)
+            db.execSQL(CREATE_TAG);
+    }
+
+    private void createVersion21(SQLiteDatabase db) {
+        db.execSQL(CREATE_PLACE);
+        db.execSQL(CREATE_CHECKS);
+        db.execSQL(CREATE_CHECKS_PLACE_INDEX);
+    }
+
+    /**
+     * Move the flat version 20 table into the normalized layout, parsing the ISO dates
+     * once so nobody has to do it again on every query.
+     */
+    private void upgradeToVersion21(SQLiteDatabase db) {
+        createVersion21(db);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + LEGACY_TABLE + " (id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, placename varchar(255) NOT NULL, indate varchar(255) NOT NULL, outdate varchar(255))");
+        db.execSQL("INSERT INTO place (name) SELECT DISTINCT placename FROM " + LEGACY_TABLE);
+
+        SQLiteStatement insert = db.compileStatement("INSERT INTO checks (place_id, in_ms, out_ms) VALUES (?, ?, ?)");
+        Cursor cursor = db.rawQuery("SELECT p.id, l.indate, l.outdate FROM " + LEGACY_TABLE + " l "
+                + "JOIN place p ON p.name = l.placename ORDER BY l.id", null);
+        while (cursor.moveToNext()) {
+            try {
+                insert.clearBindings();
+                insert.bindLong(1, cursor.getLong(0));
+                insert.bindLong(2, DateTime.parse(cursor.getString(1)).getMillis());
+                if (cursor.isNull(2))
+                    insert.bindNull(3);
+                else
+                    insert.bindLong(3, DateTime.parse(cursor.getString(2)).getMillis());
+                insert.executeInsert();
+            } catch (IllegalArgumentException e) {
+                // Corrupted date, the row can't be recovered
+                e.printStackTrace();
+            }
+        }
+        cursor.close();
+        insert.close();
+
+        // Checking out used to stamp the time on every row of the place, so only the last
+        // closed check of each place kept its own. The others get no later than the next
+        // check in, otherwise their totals and rollups would span until that last check out
+        db.execSQL("UPDATE checks SET out_ms = (" + NEXT_CHECK_IN + ") "
+                + "WHERE out_ms IS NOT NULL AND out_ms >= (" + NEXT_CHECK_IN + ")");
+
+        db.execSQL("DROP TABLE " + LEGACY_TABLE);
+    }
+
+    private void upgradeToVersion22(SQLiteDatabase db) {
+        db.execSQL(CREATE_OPEN_CHECK);
+        // Only the latest check of each place can be open
+        db.execSQL("INSERT INTO open_check (place_id, check_id, in_ms) "
+                + "SELECT c.place_id, c.id, c.in_ms FROM checks c WHERE c.out_ms IS NULL "
+                + "AND NOT EXISTS (SELECT 1 FROM checks l WHERE l.place_id = c.place_id AND l.in_ms > c.in_ms)");
+    }
+
+    private void upgradeToVersion23(SQLiteDatabase db) {
+        db.execSQL(CREATE_PLACE_SUMMARY);
+        db.execSQL("INSERT INTO place_summary (place_id, visits, total_minutes, last_seen_ms) "
+                + "SELECT p.id, COUNT(c.id), COALESCE(SUM((c.out_ms - c.in_ms) / 60000), 0), MAX(COALESCE(c.out_ms, c.in_ms)) "
+                + "FROM place p LEFT JOIN checks c ON c.place_id = p.id GROUP BY p.id");
+    }
+
+    private void upgradeToVersion24(SQLiteDatabase db) {
+        db.execSQL(CREATE_ROLLUP);
+
+        SQLiteStatement insert = db.compileStatement(Rollups.INSERT);
+        SQLiteStatement update = db.compileStatement(Rollups.UPDATE);
+        Cursor cursor = db.rawQuery("SELECT place_id, in_ms, out_ms FROM checks WHERE out_ms IS NOT NULL", null);
+        while (cursor.moveToNext())
+            Rollups.add(insert, update, cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+        cursor.close();
+        insert.close();
+        update.close();
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.database.sqlite.SQLiteStatement;
+
+import org.joda.time.DateTime;
+
+/**
+ * Adds closed checks to the daily, weekly and monthly totals of their place. A check
+ * crossing a bucket boundary, like midnight, is split between both buckets.
+ */
+class Rollups {
+    static final String INSERT = "INSERT OR IGNORE INTO rollup (place_id, granularity, bucket_ms) VALUES (?, ?, ?)";
+    static final String UPDATE = "UPDATE rollup SET duration_ms = duration_ms + ? "
+            + "WHERE place_id = ? AND granularity = ? AND bucket_ms = ?";
+
+    private Rollups() {
+    }
+
+    /**
+     * Add a closed check to every rollup.
+     * @param insert compiled {@link #INSERT} statement
+     * @param update compiled {@link #UPDATE} statement
+     * @param placeId the place of the check
+     * @param inMs check in time
+     * @param outMs check out time
+     */
+    static void add(SQLiteStatement insert, SQLiteStatement update, long placeId, long inMs, long outMs) {
+        for (Granularity granularity : Granularity.values()) {
+            DateTime start = granularity.bucketStart(new DateTime(inMs));
+            while (start.getMillis() < outMs) {
+                DateTime next = granularity.nextBucket(start);
+                long duration = Math.min(outMs, next.getMillis()) - Math.max(inMs, start.getMillis());
+                if (duration > 0) {
+                    insert.bindLong(1, placeId);
+                    insert.bindLong(2, granularity.getId());
+                    insert.bindLong(3, start.getMillis());
+                    insert.executeInsert();
+
+                    update.bindLong(1, duration);
+                    update.bindLong(2, placeId);
+                    update.bindLong(3, granularity.getId());
+                    update.bindLong(4, start.getMillis());
+                    update.executeUpdateDelete();
+                }
+                start = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the compiled statements of the DAO for the life of the connection, so each SQL
+ * string is compiled only once. SQLiteStatement is not thread safe, so every thread gets
+ * its own copy instead of locking: a lock here could deadlock against a transaction
+ * holding the database on another thread. The copies of a thread are closed once it has
+ * finished, the next time any thread compiles a statement.
+ */
+class StatementCache {
+    private final SQLiteDatabase db;
+    // The statements of every thread, to close them when the thread or the connection ends
+    private final Map<Thread, Map<String, SQLiteStatement>> owners = new HashMap<>();
+    private final ThreadLocal<Map<String, SQLiteStatement>> statements = new ThreadLocal<Map<String, SQLiteStatement>>() {
+        @Override
+        protected Map<String, SQLiteStatement> initialValue() {
+            Map<String, SQLiteStatement> threadStatements = new HashMap<>();
+            synchronized (owners) {
+                owners.put(Thread.currentThread(), threadStatements);
+            }
+            return threadStatements;
+        }
+    };
+
+    StatementCache(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Get the statement for the given SQL with no arguments bound.
+     * @param sql the statement to compile
+     * @return a statement ready to be bound, owned by the calling thread
+     */
+    SQLiteStatement get(String sql) {
+        Map<String, SQLiteStatement> threadStatements = statements.get();
+        SQLiteStatement statement = threadStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            synchronized (owners) {
+                threadStatements.put(sql, statement);
+                releaseFinishedThreads();
+            }
+        } else
+            statement.clearBindings();
+        return statement;
+    }
+
+    /**
+     * Close the statements of the threads that are gone, like the pool threads of
+     * AsyncTask or the NFC worker of a destroyed activity. Must hold the owners lock.
+     */
+    private void releaseFinishedThreads() {
+        Iterator<Map.Entry<Thread, Map<String, SQLiteStatement>>> iterator = owners.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Thread, Map<String, SQLiteStatement>> owner = iterator.next();
+            if (!owner.getKey().isAlive()) {
+                for (SQLiteStatement statement : owner.getValue().values())
+                    statement.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    void close() {
+        synchronized (owners) {
+            for (Map<String, SQLiteStatement> threadStatements : owners.values()) {
+                for (SQLiteStatement statement : threadStatements.values())
+                    statement.close();
+                threadStatements.clear();
+            }
+            owners.clear();
+        }
+    }
+}
@@ -19,7 +19,6 @@ package com.naroh.nfctimecontrol.fragments;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.database.SQLException;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
@@ -40,15 +39,22 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.LatLng;
 
+import org.joda.time.DateTime;
+
 import java.util.List;
+import java.util.concurrent.Future;
 
+import com.naroh.nfctimecontrol.NFCTimeControl;
 import com.naroh.nfctimecontrol.R;
+import com.naroh.nfctimecontrol.data.AsyncPlacesDAO;
+import com.naroh.nfctimecontrol.data.DataChange;
+import com.naroh.nfctimecontrol.data.DataChangeBus;
 import com.naroh.nfctimecontrol.data.PlacesDAO;
 import com.naroh.nfctimecontrol.helpers.SPHelper;
 import com.naroh.nfctimecontrol.other.Constants;
 
 
-public class MainActivityFragment extends Fragment implements OnMapReadyCallback, ActivityCompat.OnRequestPermissionsResultCallback {
+public class MainActivityFragment extends Fragment implements OnMapReadyCallback, ActivityCompat.OnRequestPermissionsResultCallback, DataChangeBus.OnDataChangedListener {
     private SupportMapFragment mapView;
     private Location loc;
     private CardView instructions;
@@ -56,6 +62,8 @@ public class MainActivityFragment extends Fragment implements OnMapReadyCallback
     private CardView card;
     private TextView placeName;
     private TextView placeTime;
+    private Future<OpenChecks> feedbackQuery;
+    private OpenChecks openChecks;
 
     public MainActivityFragment() {
         // Required empty public constructor
@@ -88,6 +96,17 @@ public class MainActivityFragment extends Fragment implements OnMapReadyCallback
         card = (CardView) view.findViewById(R.id.cardview);
         placeName = (TextView) view.findViewById(R.id.place_name);
         placeTime = (TextView) view.findViewById(R.id.place_time);
+
+        NFCTimeControl.getDataChangeBus(getActivity()).addOnDataChangedListener(this);
+        showUserFeedbackNoTags();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        NFCTimeControl.getDataChangeBus(getActivity()).removeOnDataChangedListener(this);
+        if (feedbackQuery != null)
+            feedbackQuery.cancel(false);
     }
 
     /**
@@ -174,19 +193,42 @@ public class MainActivityFragment extends Fragment implements OnMapReadyCallback
     }
 
     public void showUserFeedbackNoTags() {
-        PlacesDAO db = new PlacesDAO(getActivity());
-        if(SPHelper.getBoolean(getActivity(), "first_time", true) && db.isEmpty()) {
+        final boolean firstTime = SPHelper.getBoolean(getActivity(), "first_time", true);
+        if (feedbackQuery != null)
+            feedbackQuery.cancel(false);
+
+        feedbackQuery = NFCTimeControl.getAsyncPlacesDAO(getActivity()).submit(new AsyncPlacesDAO.Query<OpenChecks>() {
+            @Override
+            public OpenChecks run(PlacesDAO db) {
+                OpenChecks result = new OpenChecks();
+                result.empty = firstTime && db.isEmpty();
+                if (!result.empty) {
+                    result.places = db.getOpenChecks();
+                    if (result.places != null)
+                        result.checkInMillis = db.getOpenCheckInMillis(result.places.get(0));
+                }
+                return result;
+            }
+        }, new AsyncPlacesDAO.Callback<OpenChecks>() {
+            @Override
+            public void onResult(OpenChecks result) {
+                openChecks = result;
+                showOpenChecks(result);
+            }
+        });
+    }
+
+    private void showOpenChecks(OpenChecks openChecks) {
+        if(openChecks.empty) {
             card.setVisibility(View.GONE);
             instructions.setVisibility(View.VISIBLE);
             action.setText(R.string.create_place_start);
         }else{
 
-            List<String> openChecks = db.getOpenChecks();
-
-            if(openChecks != null){
+            if(openChecks.places != null){
                 StringBuilder placeNames = new StringBuilder();
 
-                for(String place : openChecks) {
+                for(String place : openChecks.places) {
                     placeNames.append(place);
                     placeNames.append(" ");
                 }
@@ -194,11 +236,8 @@ public class MainActivityFragment extends Fragment implements OnMapReadyCallback
                 instructions.setVisibility(View.GONE);
                 card.setVisibility(View.VISIBLE);
                 placeName.setText(placeNames.toString());
-                try {
-                    placeTime.setText(String.format(getString(R.string.for_hours_minutes), db.getTimeInOpenCheck(openChecks.get(0))/60, db.getTimeInOpenCheck(openChecks.get(0))%60));
-                }catch (SQLException e){
-                    e.printStackTrace();
-                }
+                long minutes = openChecks.getMinutes();
+                placeTime.setText(String.format(getString(R.string.for_hours_minutes), minutes/60, minutes%60));
             } else{
                 card.setVisibility(View.GONE);
                 action.setText(getString(R.string.scan_a_tag_nto_check_in));
@@ -211,7 +250,26 @@ public class MainActivityFragment extends Fragment implements OnMapReadyCallback
     @Override
     public void onResume() {
         super.onResume();
+        // Nothing changed while hidden or the bus would have said so, only the time went by
+        if (openChecks != null)
+            showOpenChecks(openChecks);
+    }
+
+    @Override
+    public void onDataChanged(List<DataChange> changes) {
+        // Every change can open, close or remove the checks shown here
         showUserFeedbackNoTags();
     }
 
+    private static class OpenChecks {
+        boolean empty;
+        List<String> places;
+        long checkInMillis = -1;
+
+        long getMinutes() {
+            if (checkInMillis < 0)
+                return 0;
+            return (DateTime.now().getMillis() - checkInMillis) / (60 * 1000);
+        }
+    }
 }
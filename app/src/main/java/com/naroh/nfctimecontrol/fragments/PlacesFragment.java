@@ -26,23 +26,34 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
+import com.naroh.nfctimecontrol.NFCTimeControl;
 import com.naroh.nfctimecontrol.R;
 import com.naroh.nfctimecontrol.adapters.PlacesAdapter;
+import com.naroh.nfctimecontrol.data.AsyncPlacesDAO;
+import com.naroh.nfctimecontrol.data.DataChange;
+import com.naroh.nfctimecontrol.data.DataChangeBus;
 import com.naroh.nfctimecontrol.data.PlacesDAO;
 import com.naroh.nfctimecontrol.decorators.DividerItemDecoration;
+import com.naroh.nfctimecontrol.models.PlaceSummary;
 
 /**
  * A simple {@link Fragment} subclass.
  * Use the {@link PlacesFragment#newInstance} factory method to
  * create an instance of this fragment.
  */
-public class PlacesFragment extends Fragment {
-    private PlacesDAO db;
-    private List<String> placesList;
+public class PlacesFragment extends Fragment implements DataChangeBus.OnDataChangedListener {
     private RecyclerView list;
     private PlacesAdapter adapter;
+    private Future<PlacesAdapter.Diff> placesQuery;
+    private Map<String, Future<PlaceSummary>> placeQueries = new HashMap<>();
 
     public PlacesFragment() {
         // Required empty public constructor
@@ -70,27 +81,97 @@ public class PlacesFragment extends Fragment {
         super.onViewCreated(view, savedInstanceState);
 
         list = (RecyclerView) view.findViewById(R.id.places_list);
-        db = new PlacesDAO(getActivity());
-        placesList = db.getPlaceNames();
-
-        adapter = new PlacesAdapter(getActivity(), placesList);
+        adapter = new PlacesAdapter(getActivity(), new ArrayList<PlaceSummary>());
         list.setLayoutManager(new LinearLayoutManager(getActivity()));
         list.setHasFixedSize(true);
         list.addItemDecoration(new DividerItemDecoration(getActivity(), DividerItemDecoration.VERTICAL_LIST));
 
         list.setAdapter(adapter);
+
+        // Listen while the view exists, places are deleted from PlaceActivity on top of it
+        NFCTimeControl.getDataChangeBus(getActivity()).addOnDataChangedListener(this);
+        loadPlaces();
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
+    public void onDestroyView() {
+        super.onDestroyView();
+        NFCTimeControl.getDataChangeBus(getActivity()).removeOnDataChangedListener(this);
+        if (placesQuery != null)
+            placesQuery.cancel(false);
+        cancelPlaceQueries();
+    }
 
-        // Refresh the list every time the fragment is shown again to reflect changes in case
-        // a place is deleted from its activity
-        // TODO change this, probably better ways to implement it
+    @Override
+    public void onDataChanged(List<DataChange> changes) {
+        Set<String> changedPlaces = new LinkedHashSet<>();
+        for (DataChange change : changes) {
+            if (change.changesPlaces()) {
+                // Rows come and go, reload the whole list
+                loadPlaces();
+                return;
+            }
+            changedPlaces.add(change.getPlaceName());
+        }
+
+        for (String place : changedPlaces)
+            loadPlace(place);
+    }
+
+    private void loadPlace(final String place) {
+        Future<PlaceSummary> previous = placeQueries.get(place);
+        if (previous != null)
+            previous.cancel(false);
+
+        placeQueries.put(place, NFCTimeControl.getAsyncPlacesDAO(getActivity()).submit(new AsyncPlacesDAO.Query<PlaceSummary>() {
+            @Override
+            public PlaceSummary run(PlacesDAO dao) {
+                return dao.getPlaceSummary(place);
+            }
+        }, new AsyncPlacesDAO.Callback<PlaceSummary>() {
+            @Override
+            public void onResult(PlaceSummary summary) {
+                if (summary != null)
+                    adapter.updatePlace(summary);
+            }
+        }));
+    }
 
-        if(adapter != null)
-            adapter.replaceData(db.getPlaceNames()
-            );
+    private void cancelPlaceQueries() {
+        for (Future<PlaceSummary> query : placeQueries.values())
+            query.cancel(false);
+        placeQueries.clear();
+    }
+
+    private void loadPlaces() {
+        // The full list covers any single place still loading
+        cancelPlaceQueries();
+        showPlaces(null);
+    }
+
+    /**
+     * Diff the places in the background and show them.
+     * @param places the places to show, or null to read them from the database
+     */
+    private void showPlaces(final List<PlaceSummary> places) {
+        if (placesQuery != null)
+            placesQuery.cancel(false);
+
+        final List<PlaceSummary> shown = adapter.getItems();
+        final int generation = adapter.getGeneration();
+        placesQuery = NFCTimeControl.getAsyncPlacesDAO(getActivity()).submit(new AsyncPlacesDAO.Query<PlacesAdapter.Diff>() {
+            @Override
+            public PlacesAdapter.Diff run(PlacesDAO dao) {
+                // Diff here too, so the main thread only notifies the rows that changed
+                return PlacesAdapter.diff(shown, places != null ? places : dao.getPlaceSummaries(), generation);
+            }
+        }, new AsyncPlacesDAO.Callback<PlacesAdapter.Diff>() {
+            @Override
+            public void onResult(PlacesAdapter.Diff diff) {
+                // A single place was updated meanwhile, diff the same places again
+                if (!adapter.applyDiff(diff))
+                    showPlaces(diff.getNewItems());
+            }
+        });
     }
 }
@@ -34,11 +34,14 @@ import com.github.mikephil.charting.data.PieData;
 import com.github.mikephil.charting.data.PieDataSet;
 import com.github.mikephil.charting.formatter.PercentFormatter;
 import com.github.mikephil.charting.utils.ColorTemplate;
+import com.naroh.nfctimecontrol.NFCTimeControl;
 import com.naroh.nfctimecontrol.R;
+import com.naroh.nfctimecontrol.data.AsyncPlacesDAO;
 import com.naroh.nfctimecontrol.data.PlacesDAO;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * A simple {@link Fragment} subclass.
@@ -49,6 +52,7 @@ public class StatsFragment extends Fragment {
     private PieChart chart;
     private List<Pair<String, Integer>> places;
     private int total;
+    private Future<List<Pair<String, Integer>>> placesQuery;
 
     public StatsFragment() {
         // Required empty public constructor
@@ -75,10 +79,6 @@ public class StatsFragment extends Fragment {
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        PlacesDAO dao = new PlacesDAO(getActivity());
-        places = dao.getAllChecks();
-        total = dao.getCheckCount();
-
         chart = (PieChart) view.findViewById(R.id.pie_chart);
         chart.setUsePercentValues(true);
         chart.setDescription("");
@@ -101,16 +101,37 @@ public class StatsFragment extends Fragment {
         chart.setRotationEnabled(true);
         chart.setHighlightPerTapEnabled(true);
 
-        setData();
-
-        chart.animateY(1400, Easing.EasingOption.EaseInOutQuad);
-        // mChart.spin(2000, 0, 360);
-
         Legend l = chart.getLegend();
         l.setPosition(Legend.LegendPosition.RIGHT_OF_CHART);
         l.setXEntrySpace(7f);
         l.setYEntrySpace(0f);
         l.setYOffset(0f);
+
+        placesQuery = NFCTimeControl.getAsyncPlacesDAO(getActivity()).submit(new AsyncPlacesDAO.Query<List<Pair<String, Integer>>>() {
+            @Override
+            public List<Pair<String, Integer>> run(PlacesDAO dao) {
+                return dao.getAllChecks();
+            }
+        }, new AsyncPlacesDAO.Callback<List<Pair<String, Integer>>>() {
+            @Override
+            public void onResult(List<Pair<String, Integer>> result) {
+                places = result;
+                total = 0;
+                for (Pair<String, Integer> place : places)
+                    total += place.second;
+
+                setData();
+
+                chart.animateY(1400, Easing.EasingOption.EaseInOutQuad);
+                // mChart.spin(2000, 0, 360);
+            }
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        placesQuery.cancel(false);
     }
 
     private void setData() {
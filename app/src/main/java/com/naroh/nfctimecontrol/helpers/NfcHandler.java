@@ -22,8 +22,10 @@ import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.Tag;
 import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.nfc.tech.TagTechnology;
+import android.os.Handler;
 import android.os.Parcelable;
-import android.widget.Toast;
 
 import org.ndeftools.MimeRecord;
 import org.ndeftools.Record;
@@ -31,60 +33,118 @@ import org.ndeftools.UnsupportedRecord;
 import org.ndeftools.externaltype.AndroidApplicationRecord;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
 
-import com.naroh.nfctimecontrol.R;
 import com.naroh.nfctimecontrol.other.Constants;
 import com.naroh.nfctimecontrol.other.IterableMessage;
 
 public class NfcHandler {
+    public static final int WRITE_OK = 0;
+    public static final int WRITE_NOT_WRITABLE = 1;
+    public static final int WRITE_NO_SPACE = 2;
+    public static final int WRITE_ERROR = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The layout written by writeTag, compared byte by byte when reading
+    private static final byte[] MIME_TYPE = Constants.NFC_MIME_TYPE.getBytes(UTF_8);
+    private static final byte[] AAR_TYPE = NdefRecord.RTD_ANDROID_APP;
+    private static final byte[] PACKAGE = Constants.PACKAGE_NAME.getBytes(UTF_8);
+
     private Context context;
+    private Handler watchdog;
+    private long timeoutMs;
 
     public NfcHandler(Context context) {
         this.context = context;
     }
 
-    public Tag eraseTag(Tag tag){
-        Ndef ndefTag = Ndef.get(tag);
-            try {
-                ndefTag.connect();
-                ndefTag.writeNdefMessage(new NdefMessage(new NdefRecord(NdefRecord.TNF_EMPTY, null, null, null)));
-                ndefTag.close();
-                return tag;
-            } catch (IOException | FormatException e) {
-                e.printStackTrace();
-                return null;
-            }
+    /**
+     * Abort tag operations taking longer than the given time. Without it an operation
+     * blocks until the radio gives up, which can take seconds.
+     * @param watchdog handler of a thread not doing tag operations, it closes the late ones
+     * @param timeoutMs maximum time of a single operation
+     */
+    public void setTimeout(Handler watchdog, long timeoutMs) {
+        this.watchdog = watchdog;
+        this.timeoutMs = timeoutMs;
     }
 
     /**
-     * Write the desired data into the scanned NFC tag.
-     * @param tag scanned tag
-     * @param name the place name
-     * @return true if the operation is successful, false otherwise
+     * Connect, write and close. Blocks, so never call it from the main thread.
      */
-    public boolean writeTag(Tag tag, String name){
-        Ndef ndefTag = Ndef.get(tag);
+    private void writeMessage(Ndef ndefTag, NdefMessage message) throws IOException, FormatException {
+        Runnable abort = startWatchdog(ndefTag);
+        try {
+            ndefTag.connect();
+            ndefTag.writeNdefMessage(message);
+        } finally {
+            stopWatchdog(abort);
+            ndefTag.close();
+        }
+    }
 
-        // Check if the tag is formatted. If it is not, format it
-        if(ndefTag == null)
-            ndefTag = Ndef.get(eraseTag(tag));
+    /**
+     * Connect, format the tag as NDEF with the message in it and close. Blocks, so never
+     * call it from the main thread.
+     */
+    private void formatMessage(NdefFormatable formatableTag, NdefMessage message) throws IOException, FormatException {
+        Runnable abort = startWatchdog(formatableTag);
+        try {
+            formatableTag.connect();
+            formatableTag.format(message);
+        } finally {
+            stopWatchdog(abort);
+            formatableTag.close();
+        }
+    }
 
-        // The format wasn't successful, so we abort the mission
-        if(ndefTag == null)
-            return false;
+    private Runnable startWatchdog(final TagTechnology tech) {
+        // Closing the tag from another thread cancels the blocked I/O of this one
+        Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tech.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        if (watchdog != null)
+            watchdog.postDelayed(abort, timeoutMs);
+        return abort;
+    }
 
-        // Check if the NFC tag is writable
-        if(!ndefTag.isWritable()){
-            Toast.makeText(context, R.string.nfc_tag_not_writable, Toast.LENGTH_LONG).show();
-            return false;
+    private void stopWatchdog(Runnable abort) {
+        if (watchdog != null)
+            watchdog.removeCallbacks(abort);
+    }
+
+    public Tag eraseTag(Tag tag){
+        Ndef ndefTag = Ndef.get(tag);
+        if (ndefTag == null)
+            return null;
+        try {
+            writeMessage(ndefTag, new NdefMessage(new NdefRecord(NdefRecord.TNF_EMPTY, null, null, null)));
+            return tag;
+        } catch (IOException | FormatException e) {
+            e.printStackTrace();
+            return null;
         }
+    }
 
+    /**
+     * Build the message of a place tag.
+     * @param payload the place, from {@link TagPayload#encode(long, String)}
+     * @return the message to pass to {@link #writeTag(Tag, NdefMessage)}
+     */
+    public NdefMessage createMessage(byte[] payload){
         // Create a record so the device knows what application should handle the tag
         NdefRecord appRecord = NdefRecord.createApplicationRecord(context.getPackageName());
-        // Create a mimetype with the package name and the place name
-        byte[] placeNameBytes = name.getBytes();
-        NdefRecord dataRecord = NdefRecord.createMime(Constants.NFC_MIME_TYPE, placeNameBytes);
+        // Create a mimetype with the package name and the place
+        NdefRecord dataRecord = NdefRecord.createMime(Constants.NFC_MIME_TYPE, payload);
 
         /*
             Create the definitive NFC message
@@ -93,30 +153,85 @@ public class NfcHandler {
             Reference: http://stackoverflow.com/a/25510642/1376140
         */
 
-        NdefMessage message = new NdefMessage(new NdefRecord[] {dataRecord, appRecord});
+        return new NdefMessage(new NdefRecord[] {dataRecord, appRecord});
+    }
+
+    /**
+     * Write a message into the scanned NFC tag. Blocks, so never call it from the main
+     * thread.
+     * @param tag scanned tag
+     * @param message the place, from {@link #createMessage(byte[])}
+     * @return WRITE_OK if the operation is successful, the reason it failed otherwise
+     */
+    public int writeTag(Tag tag, NdefMessage message){
+        Ndef ndefTag = Ndef.get(tag);
+
+        // Check if the tag is formatted. If it is not, format it with the message in it
+        if(ndefTag == null)
+            return formatTag(tag, message);
+
+        // Check if the NFC tag is writable
+        if(!ndefTag.isWritable())
+            return WRITE_NOT_WRITABLE;
 
         // Check if there is enough space
         int messageSize = message.toByteArray().length;
-        if(ndefTag.getMaxSize() < messageSize){
-            Toast.makeText(context, R.string.nfc_tag_no_space, Toast.LENGTH_LONG).show();
-            return false;
-        }
+        if(ndefTag.getMaxSize() < messageSize)
+            return WRITE_NO_SPACE;
         // Try to format and write the data in the tag
         try{
-            ndefTag.connect();
-            ndefTag.writeNdefMessage(message);
-            ndefTag.close();
-            Toast.makeText(context, R.string.nfc_tag_successful_write, Toast.LENGTH_LONG).show();
-            return true;
+            writeMessage(ndefTag, message);
+            return WRITE_OK;
+        } catch (FormatException | IOException e) {
+            // Also thrown when the watchdog closes a tag that took too long
+            e.printStackTrace();
+            return WRITE_ERROR;
+        }
+    }
+
+    /**
+     * Format a blank tag as NDEF with the message in it. Blocks, so never call it from the
+     * main thread.
+     */
+    private int formatTag(Tag tag, NdefMessage message) {
+        NdefFormatable formatableTag = NdefFormatable.get(tag);
+        // Neither NDEF nor formatable as NDEF, so we abort the mission
+        if (formatableTag == null)
+            return WRITE_ERROR;
+        try {
+            formatMessage(formatableTag, message);
+            return WRITE_OK;
         } catch (FormatException | IOException e) {
             e.printStackTrace();
-            Toast.makeText(context, R.string.nfc_tag_error_writing, Toast.LENGTH_LONG).show();
-            return false;
+            return WRITE_ERROR;
         }
     }
-    public String readTag(Parcelable[] data){
+
+    /**
+     * Hash the contents of a tag without copying them, to tell whether it changed.
+     * @param messages the NDEF messages of the tag, as found in the discovery intent
+     * @return the same hash for the same records
+     */
+    public static int hashMessages(Parcelable[] messages){
+        return Arrays.hashCode(messages);
+    }
+
+    /**
+     * Read the place stored in a scanned tag.
+     * @param data the NDEF messages of the tag
+     * @return the place, still to be resolved if it's compact, or null if it's not one of our tags
+     */
+    public TagPayload readTag(Parcelable[] data){
         if(data == null)
             return null;
+
+        // Almost every tap is one of our tags, read it without building any record objects
+        if (data.length == 1) {
+            byte[] payload = readOwnLayout((NdefMessage) data[0]);
+            if (payload != null)
+                return TagPayload.parse(payload);
+        }
+
         NdefMessage[] messages = new NdefMessage[data.length];
         for(int i=0; i<data.length; i++)
             messages[i] = (NdefMessage) data[i];
@@ -139,7 +254,27 @@ public class NfcHandler {
             return null;
     }
 
-    private String parse(IterableMessage message) {
+    /**
+     * Read the place of a tag written by {@link #writeTag(Tag, NdefMessage)}: a MIME record with
+     * the place followed by the application record of this package.
+     * @return the payload of the MIME record, or null if the message has any other layout
+     */
+    private static byte[] readOwnLayout(NdefMessage message) {
+        NdefRecord[] records = message.getRecords();
+        if (records.length != 2)
+            return null;
+
+        NdefRecord data = records[0];
+        NdefRecord app = records[1];
+        if (data.getTnf() != NdefRecord.TNF_MIME_MEDIA || !Arrays.equals(data.getType(), MIME_TYPE))
+            return null;
+        if (app.getTnf() != NdefRecord.TNF_EXTERNAL_TYPE || !Arrays.equals(app.getType(), AAR_TYPE)
+                || !Arrays.equals(app.getPayload(), PACKAGE))
+            return null;
+        return data.getPayload();
+    }
+
+    private TagPayload parse(IterableMessage message) {
         // Our tags only have 2 records
         if (message.size() != 2)
             return null;
@@ -147,7 +282,7 @@ public class NfcHandler {
         List<Record> records = message.getAllRecords();
         if(records.get(0) instanceof MimeRecord && records.get(1) instanceof AndroidApplicationRecord ){
             if(((AndroidApplicationRecord) records.get(1)).getPackageName().equals(Constants.PACKAGE_NAME))
-                return new String((((MimeRecord) records.get(0)).getData()));
+                return TagPayload.parse(((MimeRecord) records.get(0)).getData());
             else return null;
         } else return null;
     }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.helpers;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Parcelable;
+
+import com.naroh.nfctimecontrol.NFCTimeControl;
+import com.naroh.nfctimecontrol.data.PlacesDAO;
+
+/**
+ * Runs the blocking tag operations one at a time on their own thread, each with a
+ * timeout, and delivers the results on the main thread. Connecting and writing a tag can
+ * take hundreds of milliseconds, or seconds when it's moved away from the phone.
+ */
+public class NfcWorker {
+    private static final long TIMEOUT_MS = 3000;
+
+    private final HandlerThread workerThread = new HandlerThread("NfcWorker");
+    private final HandlerThread watchdogThread = new HandlerThread("NfcWatchdog");
+    private final Handler worker;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final NfcHandler nfcHandler;
+    private final Context context;
+
+    public NfcWorker(Context context) {
+        this.context = context.getApplicationContext();
+        workerThread.start();
+        watchdogThread.start();
+        worker = new Handler(workerThread.getLooper());
+        nfcHandler = new NfcHandler(context.getApplicationContext());
+        nfcHandler.setTimeout(new Handler(watchdogThread.getLooper()), TIMEOUT_MS);
+    }
+
+    /**
+     * Write a place into a tag, creating the place if it's new.
+     * @param callback gets one of the NfcHandler.WRITE_ results
+     */
+    public void write(final Tag tag, final String name, final Callback callback) {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                int result;
+                try {
+                    PlacesDAO dao = NFCTimeControl.getPlacesDAO(context);
+                    long placeId = dao.createPlace(name);
+                    NdefMessage message = nfcHandler.createMessage(TagPayload.encode(placeId, name));
+                    result = nfcHandler.writeTag(tag, message);
+                    if (result == NfcHandler.WRITE_OK)
+                        // Hashed the way it will come in the intent of the next discovery
+                        dao.learnTag(tag.getId(), name, NfcHandler.hashMessages(new Parcelable[]{message}));
+                    else
+                        // Don't leave a place behind for a tag that wasn't written
+                        dao.deleteUnusedPlace(placeId);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    result = NfcHandler.WRITE_ERROR;
+                }
+                deliver(callback, result);
+            }
+        });
+    }
+
+    /**
+     * Find the place a scanned tag stands for. Tags seen before with the same contents are
+     * found by their UID and a hash of the messages, the rest are read and remembered for
+     * the next time. A tag rewritten or erased elsewhere no longer matches its hash.
+     * @param uid the tag id, from Tag#getId()
+     * @param messages the NDEF messages of the discovery intent, only parsed for unknown tags
+     * @param callback gets the place name, or null if the tag is not from a place of this device
+     */
+    public void resolve(final byte[] uid, final Parcelable[] messages, final PlaceCallback callback) {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                String name = null;
+                try {
+                    PlacesDAO dao = NFCTimeControl.getPlacesDAO(context);
+                    boolean hasMessages = messages != null && messages.length > 0;
+                    int payloadHash = hasMessages ? NfcHandler.hashMessages(messages) : 0;
+                    if (hasMessages)
+                        name = dao.getPlaceForTag(uid, payloadHash);
+                    if (name == null) {
+                        TagPayload payload = nfcHandler.readTag(messages);
+                        if (payload != null) {
+                            name = resolve(dao, payload);
+                            // Legacy tags of a place not checked yet are learnt on their next tap
+                            if (name != null)
+                                dao.learnTag(uid, name, payloadHash);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // A broken tag or database, reported as a tag that can't be read
+                    e.printStackTrace();
+                    name = null;
+                }
+
+                final String place = name;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPlace(place);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Compact tags are looked up in the database, legacy ones carry the name.
+     */
+    private static String resolve(PlacesDAO dao, TagPayload payload) {
+        if (!payload.isCompact())
+            return payload.getName();
+        String name = dao.getPlaceName(payload.getPlaceId());
+        // Written with another database, the id is somebody else's place
+        if (name != null && !payload.matches(name))
+            return null;
+        return name;
+    }
+
+    /**
+     * Erase the contents of a tag.
+     * It's forgotten even if erasing fails, as it may have been left half written.
+     * @param callback gets WRITE_OK or WRITE_ERROR
+     */
+    public void erase(final Tag tag, final Callback callback) {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    NFCTimeControl.getPlacesDAO(context).forgetTag(tag.getId());
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                deliver(callback, nfcHandler.eraseTag(tag) != null ? NfcHandler.WRITE_OK : NfcHandler.WRITE_ERROR);
+            }
+        });
+    }
+
+    private void deliver(final Callback callback, final int result) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * Stop the threads. Pending operations are dropped.
+     */
+    public void quit() {
+        workerThread.quit();
+        watchdogThread.quit();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread once the operation finished or timed out.
+         */
+        void onResult(int result);
+    }
+
+    public interface PlaceCallback {
+        /**
+         * Called on the main thread with the place of the tag, or null if it's unknown.
+         */
+        void onPlace(String name);
+    }
+}
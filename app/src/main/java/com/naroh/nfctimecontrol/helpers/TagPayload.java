@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.helpers;
+
+import java.nio.charset.Charset;
+
+/**
+ * Contents of the MIME record of a tag. Tags are written in a compact binary layout:
+ * <pre>
+ *   version (0x01) | place id (unsigned varint) | name hash (2 bytes) | CRC-16 (2 bytes)
+ * </pre>
+ * A handful of bytes whatever the name, so the message fits the smallest tags. The id is
+ * resolved against the local database and the hash tells if it's still the same place.
+ * Tags written before hold the raw place name in UTF-8, and are still read as such.
+ */
+public class TagPayload {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte VERSION = 0x01;
+    private static final int HASH_SIZE = 2;
+    private static final int CRC_SIZE = 2;
+
+    private final long placeId;
+    private final int nameHash;
+    private final String name;
+
+    private TagPayload(long placeId, int nameHash, String name) {
+        this.placeId = placeId;
+        this.nameHash = nameHash;
+        this.name = name;
+    }
+
+    /**
+     * Build the compact payload of a place.
+     * @param placeId the id of the place in the database
+     * @param name the place name
+     * @return the bytes to write in the MIME record
+     */
+    public static byte[] encode(long placeId, String name) {
+        byte[] buffer = new byte[1 + 10 + HASH_SIZE + CRC_SIZE];
+        int length = 0;
+        buffer[length++] = VERSION;
+        long value = placeId;
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+
+        int hash = hash(name);
+        buffer[length++] = (byte) (hash >> 8);
+        buffer[length++] = (byte) hash;
+
+        int crc = crc16(buffer, length);
+        buffer[length++] = (byte) (crc >> 8);
+        buffer[length++] = (byte) crc;
+
+        byte[] payload = new byte[length];
+        System.arraycopy(buffer, 0, payload, 0, length);
+        return payload;
+    }
+
+    /**
+     * Read a payload, compact or not.
+     * @param payload the bytes of the MIME record
+     * @return the compact payload, the place name of an older tag, or null if the payload
+     * has the compact version but is corrupted
+     */
+    public static TagPayload parse(byte[] payload) {
+        // No place name starts with a control character, so this is a compact one
+        if (payload.length > 0 && payload[0] == VERSION)
+            return parseCompact(payload);
+        // Written by an older version, the payload is the name itself
+        return new TagPayload(-1, 0, new String(payload, UTF_8));
+    }
+
+    private static TagPayload parseCompact(byte[] payload) {
+        int length = payload.length;
+        if (length < 1 + 1 + HASH_SIZE + CRC_SIZE)
+            return null;
+        int crc = ((payload[length - 2] & 0xFF) << 8) | (payload[length - 1] & 0xFF);
+        if (crc != crc16(payload, length - CRC_SIZE))
+            return null;
+
+        long placeId = 0;
+        int shift = 0;
+        int position = 1;
+        int idEnd = length - CRC_SIZE - HASH_SIZE;
+        while (true) {
+            if (position >= idEnd || shift > 63)
+                return null;
+            byte b = payload[position++];
+            placeId |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+            shift += 7;
+        }
+        if (position != idEnd)
+            return null;
+
+        int nameHash = ((payload[position] & 0xFF) << 8) | (payload[position + 1] & 0xFF);
+        return new TagPayload(placeId, nameHash, null);
+    }
+
+    static int hash(String name) {
+        return name.hashCode() & 0xFFFF;
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE of the first bytes of data.
+     */
+    static int crc16(byte[] data, int length) {
+        int crc = 0xFFFF;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+
+    /**
+     * @return true for the compact layout, false for the place name of older tags
+     */
+    public boolean isCompact() {
+        return name == null;
+    }
+
+    public long getPlaceId() {
+        return placeId;
+    }
+
+    /**
+     * @return the place name of a tag in the old layout, null for compact ones
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the name has the hash stored in the tag
+     */
+    public boolean matches(String name) {
+        return hash(name) == nameHash;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Drops repeated discoveries of the same tag. A tag held against the phone is discovered
+ * again and again, and every discovery would toggle the check of its place. The last few
+ * tags are kept in a fixed ring with the time they were last seen; a tag seen again
+ * within the window is a repeat, and it extends the window so a tag left on the phone
+ * never counts twice.
+ */
+public class TapDeduplicator {
+    private final long windowMs;
+    private final byte[][] uids;
+    private final long[] lastSeen;
+    private int next;
+    private int suppressed;
+
+    /**
+     * @param capacity how many different tags are remembered
+     * @param windowMs how long a tag must stay away before it counts again
+     */
+    public TapDeduplicator(int capacity, long windowMs) {
+        this.windowMs = windowMs;
+        this.uids = new byte[capacity][];
+        this.lastSeen = new long[capacity];
+    }
+
+    /**
+     * Tell if a discovery is a new tap, and remember it.
+     * @param uid the tag id, from Tag#getId()
+     * @param nowMs a monotonic clock, like SystemClock#elapsedRealtime()
+     * @return true for a new tap, false for a repeat that must be ignored
+     */
+    public synchronized boolean accept(byte[] uid, long nowMs) {
+        for (int i = 0; i < uids.length; i++) {
+            if (uids[i] != null && Arrays.equals(uids[i], uid)) {
+                boolean repeat = nowMs - lastSeen[i] < windowMs;
+                lastSeen[i] = nowMs;
+                if (repeat)
+                    suppressed++;
+                return !repeat;
+            }
+        }
+
+        // Not seen lately, overwrite the oldest entry
+        uids[next] = uid.clone();
+        lastSeen[next] = nowMs;
+        next = (next + 1) % uids.length;
+        return true;
+    }
+
+    /**
+     * @return how many taps were dropped as repeats
+     */
+    public synchronized int getSuppressed() {
+        return suppressed;
+    }
+}
@@ -3,18 +3,24 @@ package com.naroh.nfctimecontrol.models;
 import org.joda.time.DateTime;
 
 public class Check {
+    private long id;
     private String placeName;
     private DateTime checkIn;
     private DateTime checkOut;
     private Integer hours;
 
-    public Check(String placeName, DateTime checkIn, DateTime checkOut, Integer hours) {
+    public Check(long id, String placeName, DateTime checkIn, DateTime checkOut, Integer hours) {
+        this.id = id;
         this.placeName = placeName;
         this.checkIn = checkIn;
         this.checkOut = checkOut;
         this.hours = hours;
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getPlaceName() {
         return placeName;
     }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.models;
+
+import android.support.v4.util.LongSparseArray;
+
+import java.util.Arrays;
+
+/**
+ * The checks of one place stored column by column in primitive arrays. A long history
+ * costs a few dozen bytes per check instead of a Check with its DateTime objects, and
+ * it's a handful of allocations no matter how many checks it holds. Series made with
+ * {@link #ofPlaces(int)} hold checks of several places and keep the place of each one.
+ */
+public class CheckSeries {
+    // Check out of the checks still open
+    private static final long OPEN = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private String placeName;
+    private int size;
+    private long[] ids;
+    private long[] inMs;
+    private long[] outMs;
+    private int[] minutes;
+    // Place of each check and name of each place, only in series of several places
+    private long[] placeIds;
+    private LongSparseArray<String> placeNames;
+
+    /**
+     * @param placeName the place all the checks belong to
+     * @param capacity how many checks are expected, it grows as needed
+     */
+    public CheckSeries(String placeName, int capacity) {
+        this.placeName = placeName;
+        capacity = Math.max(capacity, MIN_CAPACITY);
+        this.ids = new long[capacity];
+        this.inMs = new long[capacity];
+        this.outMs = new long[capacity];
+        this.minutes = new int[capacity];
+    }
+
+    /**
+     * @param capacity how many checks are expected, it grows as needed
+     * @return an empty series for checks of several places, added with their place id
+     */
+    public static CheckSeries ofPlaces(int capacity) {
+        CheckSeries series = new CheckSeries(null, capacity);
+        series.placeIds = new long[series.ids.length];
+        series.placeNames = new LongSparseArray<>();
+        return series;
+    }
+
+    /**
+     * Add a closed check to a series of several places.
+     */
+    public void add(long placeId, String placeName, long id, long checkIn, long checkOut, int minutes) {
+        ensureCapacity(size + 1);
+        placeIds[size] = placeId;
+        if (placeNames.get(placeId) == null)
+            placeNames.put(placeId, placeName);
+        add(id, checkIn, checkOut, minutes);
+    }
+
+    /**
+     * Add a check with no check out yet to a series of several places.
+     */
+    public void addOpen(long placeId, String placeName, long id, long checkIn) {
+        add(placeId, placeName, id, checkIn, OPEN, 0);
+    }
+
+    /**
+     * Add a closed check.
+     */
+    public void add(long id, long checkIn, long checkOut, int minutes) {
+        ensureCapacity(size + 1);
+        this.ids[size] = id;
+        this.inMs[size] = checkIn;
+        this.outMs[size] = checkOut;
+        this.minutes[size] = minutes;
+        size++;
+    }
+
+    /**
+     * Add a check with no check out yet.
+     */
+    public void addOpen(long id, long checkIn) {
+        add(id, checkIn, OPEN, 0);
+    }
+
+    public void addAll(CheckSeries other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.ids, 0, ids, size, other.size);
+        System.arraycopy(other.inMs, 0, inMs, size, other.size);
+        System.arraycopy(other.outMs, 0, outMs, size, other.size);
+        System.arraycopy(other.minutes, 0, minutes, size, other.size);
+        if (placeIds != null) {
+            System.arraycopy(other.placeIds, 0, placeIds, size, other.size);
+            for (int i = 0; i < other.placeNames.size(); i++)
+                placeNames.put(other.placeNames.keyAt(i), other.placeNames.valueAt(i));
+        }
+        size += other.size;
+    }
+
+    /**
+     * @return a copy of the checks from index from, inclusive, to index to, exclusive
+     */
+    public CheckSeries slice(int from, int to) {
+        CheckSeries slice = new CheckSeries(placeName, to - from);
+        System.arraycopy(ids, from, slice.ids, 0, to - from);
+        System.arraycopy(inMs, from, slice.inMs, 0, to - from);
+        System.arraycopy(outMs, from, slice.outMs, 0, to - from);
+        System.arraycopy(minutes, from, slice.minutes, 0, to - from);
+        if (placeIds != null) {
+            slice.placeIds = Arrays.copyOfRange(placeIds, from, from + slice.ids.length);
+            slice.placeNames = placeNames.clone();
+        }
+        slice.size = to - from;
+        return slice;
+    }
+
+    /**
+     * @return the index of the check with the given id, or -1 if it's not here
+     */
+    public int indexOf(long id) {
+        // Looked up to continue paging, so it's almost always the last one
+        for (int i = size - 1; i >= 0; i--) {
+            if (ids[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length)
+            return;
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, newCapacity);
+        inMs = Arrays.copyOf(inMs, newCapacity);
+        outMs = Arrays.copyOf(outMs, newCapacity);
+        minutes = Arrays.copyOf(minutes, newCapacity);
+        if (placeIds != null)
+            placeIds = Arrays.copyOf(placeIds, newCapacity);
+    }
+
+    /**
+     * @return the place of every check, null in a series of several places
+     */
+    public String getPlaceName() {
+        return placeName;
+    }
+
+    /**
+     * @return the place of a check, in series of one place or several
+     */
+    public String getPlaceName(int index) {
+        return placeIds == null ? placeName : placeNames.get(placeIds[index]);
+    }
+
+    /**
+     * @return the place id of a check, only in series of several places
+     */
+    public long getPlaceId(int index) {
+        return placeIds[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public long getCheckIn(int index) {
+        return inMs[index];
+    }
+
+    public boolean isOpen(int index) {
+        return outMs[index] == OPEN;
+    }
+
+    /**
+     * @return the check out time, only meaningful if the check is not open
+     */
+    public long getCheckOut(int index) {
+        return outMs[index];
+    }
+
+    /**
+     * @return the minutes spent, 0 while the check is open
+     */
+    public int getMinutes(int index) {
+        return minutes[index];
+    }
+}
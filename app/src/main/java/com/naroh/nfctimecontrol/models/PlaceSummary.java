@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.models;
+
+import org.joda.time.DateTime;
+
+public class PlaceSummary {
+    private String placeName;
+    private long visits;
+    private long totalMinutes;
+    private DateTime lastSeen;
+
+    public PlaceSummary(String placeName, long visits, long totalMinutes, DateTime lastSeen) {
+        this.placeName = placeName;
+        this.visits = visits;
+        this.totalMinutes = totalMinutes;
+        this.lastSeen = lastSeen;
+    }
+
+    public String getPlaceName() {
+        return placeName;
+    }
+
+    public long getVisits() {
+        return visits;
+    }
+
+    public long getTotalMinutes() {
+        return totalMinutes;
+    }
+
+    public DateTime getLastSeen() {
+        return lastSeen;
+    }
+}
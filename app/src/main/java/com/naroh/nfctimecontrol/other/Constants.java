@@ -21,5 +21,8 @@ public class Constants {
     public final static int PERMISSION_LOCATION = 192;
     public final static String NFC_MIME_TYPE = "application/com.naroh.nfctimecontrol";
     public final static String PACKAGE_NAME = "com.naroh.nfctimecontrol";
+    // A tag seen again within this time is the same tap
+    public final static long TAP_WINDOW_MS = 5000;
+    public final static int TAP_HISTORY = 8;
 
 }
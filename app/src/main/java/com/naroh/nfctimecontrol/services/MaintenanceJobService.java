@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol.services;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Build;
+import android.util.Log;
+
+import com.naroh.nfctimecontrol.NFCTimeControl;
+import com.naroh.nfctimecontrol.data.DatabaseMaintenance;
+import com.naroh.nfctimecontrol.helpers.SPHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the database housekeeping about once a day, only while the device is idle and
+ * charging so it never competes with the user.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MaintenanceJobService extends JobService {
+    private static final String TAG = "MaintenanceJobService";
+    private static final int JOB_ID = 1;
+    private static final long PERIOD_MS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Schedule the job unless it's already pending. Does nothing before Lollipop, where
+     * there's no JobScheduler.
+     * @param context any context of the application
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            // Scheduling it again would restart its period
+            if (job.getId() == JOB_ID)
+                return;
+        }
+
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, MaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIOD_MS)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                try {
+                    DatabaseMaintenance.Report report = NFCTimeControl.getPlacesDAO(MaintenanceJobService.this).runMaintenance();
+                    Log.i(TAG, report.toString());
+                    record(report);
+                    if (!report.isIntact())
+                        Log.e(TAG, "Database integrity check failed: " + report.getIntegrity());
+                } catch (SQLException e) {
+                    Log.e(TAG, "Maintenance failed", e);
+                }
+                jobFinished(params, false);
+            }
+        }.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The steps can't be interrupted, let the current one finish and retry later
+        return true;
+    }
+
+    private void record(DatabaseMaintenance.Report report) {
+        SPHelper.putLong(this, "maintenance_last_run", System.currentTimeMillis());
+        SPHelper.putLong(this, "maintenance_last_vacuum_ms", report.getVacuumMillis());
+        SPHelper.putLong(this, "maintenance_last_analyze_ms", report.getAnalyzeMillis());
+        SPHelper.putLong(this, "maintenance_last_check_ms", report.getCheckMillis());
+        SPHelper.putLong(this, "maintenance_reclaimed_bytes",
+                SPHelper.getLong(this, "maintenance_reclaimed_bytes", 0) + report.getReclaimedBytes());
+        SPHelper.putString(this, "maintenance_integrity", report.getIntegrity());
+    }
+}
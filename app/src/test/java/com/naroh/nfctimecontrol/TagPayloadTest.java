@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol;
+
+import com.naroh.nfctimecontrol.helpers.TagPayload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TagPayloadTest {
+
+    @Test
+    public void compactPayload_roundTrips() throws Exception {
+        for (long placeId : new long[]{0, 1, 127, 128, 300, 1L << 40}) {
+            TagPayload payload = TagPayload.parse(TagPayload.encode(placeId, "Office"));
+            assertTrue(payload.isCompact());
+            assertEquals(placeId, payload.getPlaceId());
+            assertTrue(payload.matches("Office"));
+        }
+    }
+
+    @Test
+    public void compactPayload_isSmall() throws Exception {
+        assertEquals(6, TagPayload.encode(42, "A rather long place name for a tag").length);
+    }
+
+    @Test
+    public void oldTag_isReadAsName() throws Exception {
+        TagPayload payload = TagPayload.parse("Office".getBytes("UTF-8"));
+        assertFalse(payload.isCompact());
+        assertEquals("Office", payload.getName());
+    }
+
+    @Test
+    public void corruptedPayload_isRejected() throws Exception {
+        byte[] bytes = TagPayload.encode(42, "Office");
+        bytes[1] ^= 1;
+        assertNull(TagPayload.parse(bytes));
+    }
+
+    @Test
+    public void truncatedPayload_isRejected() throws Exception {
+        byte[] bytes = TagPayload.encode(42, "Office");
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertNull(TagPayload.parse(truncated));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2016. OneOctopus www.oneoctopus.es
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.naroh.nfctimecontrol;
+
+import com.naroh.nfctimecontrol.helpers.TapDeduplicator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TapDeduplicatorTest {
+    private static final byte[] TAG_A = {1, 2, 3, 4};
+    private static final byte[] TAG_B = {5, 6, 7, 8};
+
+    @Test
+    public void repeatInsideWindow_isSuppressed() throws Exception {
+        TapDeduplicator deduplicator = new TapDeduplicator(4, 1000);
+        assertTrue(deduplicator.accept(TAG_A, 0));
+        assertFalse(deduplicator.accept(TAG_A, 500));
+        assertTrue(deduplicator.accept(TAG_B, 600));
+        assertEquals(1, deduplicator.getSuppressed());
+    }
+
+    @Test
+    public void heldTag_extendsWindow() throws Exception {
+        TapDeduplicator deduplicator = new TapDeduplicator(4, 1000);
+        assertTrue(deduplicator.accept(TAG_A, 0));
+        assertFalse(deduplicator.accept(TAG_A, 900));
+        assertFalse(deduplicator.accept(TAG_A, 1800));
+        assertTrue(deduplicator.accept(TAG_A, 2900));
+        assertEquals(2, deduplicator.getSuppressed());
+    }
+
+    @Test
+    public void oldestTag_isForgottenWhenFull() throws Exception {
+        TapDeduplicator deduplicator = new TapDeduplicator(1, 1000);
+        assertTrue(deduplicator.accept(TAG_A, 0));
+        assertTrue(deduplicator.accept(TAG_B, 100));
+        assertTrue(deduplicator.accept(TAG_A, 200));
+    }
+}